@@ -16,7 +16,7 @@ public class Commands {
 	protected Document results; 
 	protected Element res; 
 	protected HashMap <Coord, String> namesandco  = new HashMap<>(); 
-	protected HashMap <String, city> Cities  = new HashMap<>(); 
+	protected HashMap <String, city> Cities  = new HashMap<>(); // by name key (city.key())
 	protected BST treebyname = new BST();
 	protected SGT treebycoord = new SGT();
 	
@@ -55,7 +55,7 @@ public class Commands {
     		err.appendChild(param);
     		res.appendChild(err);
         }
-        else if (namesandco.containsValue(name)) {
+        else if (Cities.containsKey(city.key(name))) {
         	Element err = results.createElement("error");
     		err.setAttribute("type", "duplicateCityName");
     		err.appendChild(cmd);
@@ -65,8 +65,8 @@ public class Commands {
         else {
         	city acity = new city(name, Integer.parseInt(x), Integer.parseInt(y), Integer.parseInt(radius), color);
         	namesandco.put(coordinate, name);
-        	Cities.put(name, acity);
-        	treebyname.insert(name, acity);
+        	Cities.put(acity.getKey(), acity);
+        	treebyname.insert(acity.getKey(), acity);
         	treebycoord.insert(coordinate, acity);
         	
         	Element output = results.createElement("output");
@@ -146,8 +146,9 @@ public class Commands {
 		cmd.setAttribute("name", elem.getNodeName());
 		Element param = results.createElement("parameters");
 		String name = helpAttributes(elem, "name", param);
+		String key = city.key(name);
 		
-		if (! Cities.containsKey(name)) {
+		if (! Cities.containsKey(key)) {
 			Element err = results.createElement("error");
     		err.setAttribute("type", "cityDoesNotExist");
     		err.appendChild(cmd);
@@ -157,15 +158,15 @@ public class Commands {
 		}
 		Element output = results.createElement("output");
 		Element del = results.createElement("cityDeleted");
-		city tcity = Cities.get(name);
+		city tcity = Cities.get(key);
 		Coord coo = new Coord(tcity.getX(), tcity.getY());
 		setCity(del, tcity);
 		output.appendChild(del);
 		
-		treebyname.deleteKey(name);
+		treebyname.deleteKey(key);
 		treebycoord.delete(coo);
 		namesandco.remove(coo);
-		Cities.remove(name);
+		Cities.remove(key);
 		
 		Element success = results.createElement("success");
 	    success.appendChild(cmd);
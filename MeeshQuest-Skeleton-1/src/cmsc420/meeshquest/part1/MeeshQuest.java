@@ -38,6 +38,13 @@ public class MeeshQuest {
 	private final static Commands commands = new Commands();
 	public static void main(String[] args) {
 
+		// optional argument: -ignoreCase compares city names ignoring case
+		for (String arg : args) {
+			if (arg.equals("-ignoreCase")) {
+				city.setIgnoreCase(true);
+			}
+		}
+
 		// configure to read from file rather than standard input/output
 		if (!USE_STD_IO) {
 			try {
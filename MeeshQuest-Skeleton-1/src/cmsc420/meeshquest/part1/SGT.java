@@ -94,11 +94,25 @@ public class SGT {
 	
 	Node root;
 	int n, m;
+	final int balanceNum, balanceDenom; // balance ratio alpha: a child may hold up to alpha of its parent
+	final int deleteNum, deleteDenom; // rebuild after deletions once n falls below this fraction of m
 	
 	SGT(){
+		this(2, 3, 1, 2);
+	}
+	
+	/**
+	 * Creates an empty tree with the given balance ratio (alpha) and delete
+	 * threshold, both as fractions.
+	 */
+	SGT(int balanceNum, int balanceDenom, int deleteNum, int deleteDenom) {
 		root = null;
 		n = 0;
 		m = 0;
+		this.balanceNum = balanceNum;
+		this.balanceDenom = balanceDenom;
+		this.deleteNum = deleteNum;
+		this.deleteDenom = deleteDenom;
 	}
 	
 	public boolean isEmpty() {
@@ -120,12 +134,12 @@ public class SGT {
 			root = root.insert(o, c);
 		}
 		n++; m++; 
-		if ((double) root.geth() > (Math.log(m) / Math.log(1.5))) {
+		if ((double) root.geth() > (Math.log(m) / Math.log((double) balanceDenom / balanceNum))) {
 			Node parent = null;
 			Node cur = root;
 			while (!cur.isEx()) {
 				Node child = o.compareTo(((InternalNode) cur).splitter) <= 0? cur.left():cur.right();
-				if (2*cur.getsize() < 3*child.getsize()) {
+				if (balanceNum*cur.getsize() < balanceDenom*child.getsize()) {
 					break;
 				}
 				else {
@@ -161,7 +175,7 @@ public class SGT {
 	public void delete(Coord o) {
 		root = deleteRec(null, root, o);
 		n --;
-		if (2*n < m) {
+		if (deleteDenom*n < deleteNum*m) {
 			rebuild(root);
 			m = n;
 		}
@@ -1,12 +1,20 @@
 package cmsc420.meeshquest.part1;
 
+import java.util.Locale;
+
 public class city implements Comparable<city>{
+		// Are names compared ignoring case? Must be set before any city is
+		// made, since a city's key depends on it.
+		private static boolean ignoreCase = false;
+
 		private String name;
+		private String key; // collation key of the name (see key())
 		private int radius, x, y;
 		private String color;
 
 		public city(String name, int x, int y, int radius, String color) {
 			this.name = name;
+			this.key = key(name);
 			this.radius = radius;
 			this.color = color;
 			this.x = x;
@@ -17,6 +25,23 @@ public class city implements Comparable<city>{
 			return name;
 		}
 
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * The collation key of a name: the name itself, or its lower-case form
+		 * when case is ignored. Names are ordered, and checked for duplicates,
+		 * by their keys, so both follow the same case policy.
+		 */
+		public static String key(String name) {
+			return ignoreCase ? name.toLowerCase(Locale.ROOT) : name;
+		}
+
+		public static void setIgnoreCase(boolean ignore) {
+			ignoreCase = ignore;
+		}
+
 		public int getX() {
 			return x;
 		}
@@ -35,7 +60,6 @@ public class city implements Comparable<city>{
 
 		@Override
 		public int compareTo(city arg0) {
-			// TODO Auto-generated method stub
-			return name.toLowerCase().compareTo(arg0.name.toLowerCase());
+			return key.compareTo(arg0.key); // keys are computed once, so this allocates nothing
 		}
 }
@@ -0,0 +1,175 @@
+package cmsc420.meeshquest.part2;
+
+/**
+ * The balance parameters of a scapegoat tree. A node is out of balance when one
+ * of its children holds more than alpha of its points, and the tree may grow to
+ * a height of log(m) / log(1 / alpha), where m bounds the number of points.
+ * After deletions, the whole tree is rebuilt once the number of points falls
+ * below deleteThreshold times m. Both ratios are kept as integer fractions, so
+ * that the balance tests are exact.
+ *
+ * An adaptive policy watches a sliding window of the most recent operations. In
+ * write-heavy phases, it relaxes alpha (halfway to 1), so that fewer inserts
+ * trigger rebuilds. In query-heavy phases, it tightens alpha (halfway to 1/2),
+ * so that searches run on a shallower tree. Otherwise, the configured alpha is
+ * used.
+ *
+ * A policy is shared by every shard of a map, so its balance tests take no lock:
+ * the alpha in effect is published as one volatile value. Only the window of an
+ * adaptive policy is locked, while an operation is recorded.
+ */
+public class BalancePolicy {
+
+	// Number of recent operations in the window of an adaptive policy
+	private final static int WINDOW = 256;
+	// Share of the window (in quarters) that makes a phase write- or query-heavy
+	private final static int HEAVY_QUARTERS = 3;
+
+	private final int alphaNum; // numerator of the configured alpha
+	private final int alphaDenom; // denominator of the configured alpha
+	private final int deleteNum; // numerator of the delete threshold
+	private final int deleteDenom; // denominator of the delete threshold
+	private final boolean adaptive; // adjust alpha to the operation mix?
+
+	private final boolean[] window; // recent operations (true = write), circular; guards the counts
+	private int next; // next slot of the window
+	private int count; // number of operations in the window
+	private int writes; // number of writes in the window
+	private volatile long alpha; // alpha in effect: numerator in the high word, denominator in the low
+
+	/**
+	 * Creates the standard policy: alpha 2/3 and delete threshold 1/2, fixed.
+	 */
+	public BalancePolicy() {
+		this(2, 3, 1, 2, false);
+	}
+
+	/**
+	 * Creates a policy.
+	 *
+	 * @param alphaNum    Numerator of alpha
+	 * @param alphaDenom  Denominator of alpha (alpha must be in (1/2, 1))
+	 * @param deleteNum   Numerator of the delete threshold
+	 * @param deleteDenom Denominator of the delete threshold (in (0, 1))
+	 * @param adaptive    Whether alpha follows the operation mix
+	 */
+	public BalancePolicy(int alphaNum, int alphaDenom, int deleteNum, int deleteDenom, boolean adaptive) {
+		if (alphaDenom <= 0 || 2 * (long) alphaNum <= alphaDenom || alphaNum >= alphaDenom) {
+			throw new IllegalArgumentException("alpha must be in (1/2, 1): " + alphaNum + "/" + alphaDenom);
+		}
+		if (deleteDenom <= 0 || deleteNum <= 0 || deleteNum >= deleteDenom) {
+			throw new IllegalArgumentException("delete threshold must be in (0, 1): " + deleteNum + "/" + deleteDenom);
+		}
+		this.alphaNum = alphaNum;
+		this.alphaDenom = alphaDenom;
+		this.deleteNum = deleteNum;
+		this.deleteDenom = deleteDenom;
+		this.adaptive = adaptive;
+		window = new boolean[WINDOW];
+		next = count = writes = 0;
+		alpha = pack(alphaNum, alphaDenom);
+	}
+
+	private static long pack(int num, int denom) {
+		return (long) num << 32 | denom;
+	}
+
+	/**
+	 * Parse a ratio, given either as a fraction "a/b" or as a decimal number
+	 * (which is taken to three places).
+	 *
+	 * @param s The text of the ratio
+	 * @return The numerator and denominator
+	 */
+	public static int[] parseRatio(String s) {
+		int slash = s.indexOf('/');
+		if (slash >= 0) {
+			return new int[] { Integer.parseInt(s.substring(0, slash).trim()),
+					Integer.parseInt(s.substring(slash + 1).trim()) };
+		} else {
+			return new int[] { Math.round(Float.parseFloat(s) * 1000), 1000 };
+		}
+	}
+
+	/**
+	 * Record an insertion or deletion.
+	 */
+	public void recordWrite() {
+		record(true);
+	}
+
+	/**
+	 * Record a query.
+	 */
+	public void recordQuery() {
+		record(false);
+	}
+
+	/**
+	 * Add an operation to the window, and choose the alpha for the current phase.
+	 */
+	private void record(boolean isWrite) {
+		if (!adaptive) {
+			return;
+		}
+		synchronized (window) {
+			if (count == WINDOW) {
+				writes -= window[next] ? 1 : 0; // oldest operation leaves the window
+			} else {
+				count++;
+			}
+			window[next] = isWrite;
+			writes += isWrite ? 1 : 0;
+			next = (next + 1) % WINDOW;
+
+			long cur;
+			if (count < WINDOW) { // too early to tell
+				cur = pack(alphaNum, alphaDenom);
+			} else if (4 * writes >= HEAVY_QUARTERS * count) { // write-heavy: halfway to 1
+				cur = pack(alphaNum + alphaDenom, 2 * alphaDenom);
+			} else if (4 * (count - writes) >= HEAVY_QUARTERS * count) { // query-heavy: halfway to 1/2
+				cur = pack(2 * alphaNum + alphaDenom, 4 * alphaDenom);
+			} else {
+				cur = pack(alphaNum, alphaDenom);
+			}
+			if (cur != alpha) { // an unchanged alpha is not rewritten, so readers keep their cached copy
+				alpha = cur;
+			}
+		}
+	}
+
+	/**
+	 * Is a node of the given size out of balance, given the size of its child on
+	 * the search path?
+	 *
+	 * @param size      The number of points under the node
+	 * @param childSize The number of points under the child
+	 * @return True if the child holds more than alpha of the points
+	 */
+	public boolean isUnbalanced(int size, int childSize) {
+		long cur = alpha; // read once, so numerator and denominator match
+		return (cur >>> 32) * size < (cur & 0xffffffffL) * childSize;
+	}
+
+	/**
+	 * The maximum height allowed for a tree.
+	 *
+	 * @param maxItems The upper bound on the number of points
+	 * @return log(maxItems) / log(1 / alpha), rounded down
+	 */
+	public int maxHeight(int maxItems) {
+		long cur = alpha; // read once, so numerator and denominator match
+		return (int) (Math.log(maxItems) / Math.log((double) (cur & 0xffffffffL) / (double) (cur >>> 32)));
+	}
+
+	/**
+	 * Should the tree be rebuilt after a deletion?
+	 *
+	 * @param nItems   The number of points
+	 * @param maxItems The upper bound on the number of points since the last rebuild
+	 * @return True if the points have fallen below the delete threshold
+	 */
+	public boolean needsRebuild(int nItems, int maxItems) {
+		return (long) deleteDenom * nItems < (long) deleteNum * maxItems;
+	}
+}
@@ -3,10 +3,14 @@ package cmsc420.meeshquest.part2;
 import org.w3c.dom.*;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Locale;
 
 /**
  * A straightforward implementation of a standard (unbalanced) binary
- * search tree.
+ * search tree. Given a balance policy, the tree is instead kept
+ * balanced as a scapegoat tree: an insertion that lands too deep
+ * rebuilds the unbalanced subtree above it, and the whole tree is
+ * rebuilt once deletions pass the delete threshold.
  * 
  * The tree is parameterized by a type P, called a point, which is
  * assumed to implement the interface NamedPoint2D. Such an object
@@ -26,14 +30,17 @@ public class BinarySearchTree<P extends NamedPoint2D> {
 	// -----------------------------------------------------------------
 
 	/**
-	 * A node of the tree. Each stores a point and the links to the left
-	 * and right children.
+	 * A node of the tree. Each stores a point, the links to the left
+	 * and right children, and the number of points in its subtree (used
+	 * to locate items by rank, and to find the scapegoat of a balanced
+	 * tree).
 	 */
 
 	private class Node {
 		P point;
 		Node left;
 		Node right;
+		int size;
 
 		/**
 		 * Node constructor.
@@ -47,6 +54,15 @@ public class BinarySearchTree<P extends NamedPoint2D> {
 			this.point = point;
 			this.left = left;
 			this.right = right;
+			updateSize();
+		}
+
+		/**
+		 * Recompute the subtree size from the children.
+		 */
+
+		void updateSize() {
+			size = 1 + getSize(left) + getSize(right);
 		}
 		
 		/**
@@ -68,6 +84,16 @@ public class BinarySearchTree<P extends NamedPoint2D> {
 	// Node processing utilities
 	// -----------------------------------------------------------------
 	
+	/**
+	 * Returns the number of points in a subtree.
+	 *
+	 * @param p The root of the subtree (possibly null)
+	 */
+
+	int getSize(Node p) {
+		return p == null ? 0 : p.size;
+	}
+
 	/**
 	 * Find a point in the subtree rooted at a given node. Note
 	 * that the point being deleted does not need to match fully. It
@@ -90,23 +116,64 @@ public class BinarySearchTree<P extends NamedPoint2D> {
 	}
 	
 	/**
-	 * Insert a point into the subtree rooted at a given node.
+	 * Insert a point into the subtree rooted at a given node. In a
+	 * balanced tree, a new leaf deeper than the height bound sets
+	 * tooDeep, and the first unbalanced node on the way back up (the
+	 * scapegoat) is rebuilt.
 	 *
 	 * @param point The point being inserted
 	 * @param p The root of the subtree in which to insert
+	 * @param depth The depth of p
 	 */
 
-	Node insert(P point, Node p) throws Exception {
-		if (p == null) // fell out of the tree?
-			p = new Node(point, null, null); // ... create a new leaf node here
-		else if (comparator.compare(point, p.point) < 0) // point is smaller?
-			p.left = insert(point, p.left); // ...insert left
+	Node insert(P point, Node p, int depth) throws Exception {
+		if (p == null) { // fell out of the tree?
+			tooDeep = policy != null && depth > policy.maxHeight(maxSize);
+			return new Node(point, null, null); // ... create a new leaf node here
+		} else if (comparator.compare(point, p.point) < 0) // point is smaller?
+			p.left = insert(point, p.left, depth + 1); // ...insert left
 		else if (comparator.compare(point, p.point) > 0) // point is larger?
-			p.right = insert(point, p.right); // ...insert right
+			p.right = insert(point, p.right, depth + 1); // ...insert right
 		else
 			throw new Exception("duplicateCityName"); // point is equal ...duplicate key!
+		p.updateSize();
+		if (tooDeep && policy.isUnbalanced(p.size, Math.max(getSize(p.left), getSize(p.right)))) {
+			tooDeep = false; // this is the scapegoat
+			return rebuild(p);
+		}
 		return p; // return ref to current node
 	}
+
+	/**
+	 * Rebuild a subtree into a perfectly balanced one.
+	 *
+	 * @param p The root of the subtree (non-null)
+	 * @return The root of the rebuilt subtree
+	 */
+
+	Node rebuild(Node p) {
+		ArrayList<P> list = new ArrayList<P>(p.size);
+		entryList(list, p);
+		if (DEBUG) {
+			System.out.println("Binary search tree: Rebuilding subtree of size " + list.size());
+		}
+		return buildTree(list, 0, list.size());
+	}
+
+	/**
+	 * Build a balanced subtree from a sorted list of points.
+	 *
+	 * @param list The points in order
+	 * @param lo The index of the first point of the subtree
+	 * @param hi The index after the last point of the subtree
+	 * @return The root of the subtree (null if empty)
+	 */
+
+	Node buildTree(ArrayList<P> list, int lo, int hi) {
+		if (lo >= hi) return null;
+		int mid = (lo + hi) / 2;
+		return new Node(list.get(mid), buildTree(list, lo, mid), buildTree(list, mid + 1, hi));
+	}
 	
 	/**
 	 * Find the replacement node. (Utility used by deletion.) This is
@@ -156,6 +223,7 @@ public class BinarySearchTree<P extends NamedPoint2D> {
 				p.right = delete(r.point, p.right); // delete the replacement
 			}
 		}
+		p.updateSize();
 		return p;
 	}
 	
@@ -173,24 +241,81 @@ public class BinarySearchTree<P extends NamedPoint2D> {
 		if (p.right != null) entryList(list, p.right);
 	}
 	
+	/**
+	 * Generates a list of up to limit items of the tree in inorder,
+	 * after skipping the first skip items. Whole subtrees are skipped
+	 * using their sizes, so this takes time proportional to the depth
+	 * of the tree plus the number of items listed.
+	 *
+	 * @param list The list of items
+	 * @param skip The number of items still to be skipped
+	 * @param limit The maximum length of the list
+	 * @param p The root of the subtree to enumerate
+	 * @return The number of items still to be skipped
+	 */
+
+	int pageList(ArrayList<P> list, int skip, int limit, Node p) {
+		if (p == null || list.size() >= limit) return skip;
+		if (skip >= getSize(p.left)) skip -= getSize(p.left); // skip the left subtree
+		else skip = pageList(list, skip, limit, p.left);
+		if (list.size() >= limit) return skip;
+		if (skip > 0) skip--; // skip this item
+		else list.add(p.point);
+		return pageList(list, skip, limit, p.right);
+	}
+
+	/**
+	 * Generates a list of up to limit items of the tree that lie
+	 * between two bounds (inclusive), according to an inorder
+	 * traversal. Subtrees that lie entirely outside the bounds are not
+	 * visited, and the traversal stops once the list is full, so this
+	 * takes time proportional to the depth of the tree plus the number
+	 * of items listed.
+	 *
+	 * @param list The list of items
+	 * @param lo The lower bound
+	 * @param hi The upper bound
+	 * @param limit The maximum length of the list
+	 * @param p The root of the subtree to enumerate
+	 */
+
+	void rangeList(ArrayList<P> list, P lo, P hi, int limit, Node p) {
+		if (p == null || list.size() >= limit) return; // empty subtree or full list
+		int cmpLo = comparator.compare(p.point, lo);
+		int cmpHi = comparator.compare(p.point, hi);
+		if (cmpLo > 0) rangeList(list, lo, hi, limit, p.left);
+		if (list.size() >= limit) return;
+		if (cmpLo >= 0 && cmpHi <= 0) list.add(p.point);
+		if (cmpHi < 0) rangeList(list, lo, hi, limit, p.right);
+	}
+	
 	/**
 	 * Generates an XML element summarizing this subtree structure.
-	 * The XML node structure mimics the tree's structure.
+	 * The XML node structure mimics the tree's structure. Below the
+	 * given depth, a subtree is replaced by a stub giving its size.
 	 *
 	 * @param element The element of the XML document
 	 * @param p The node whose subtree to printed
+	 * @param depth The number of levels still to print
 	 */
 
-	void print(Element element, Node p) {
+	void print(Element element, Node p, int depth) {
+		Document resultsDoc = element.getOwnerDocument(); // document receiving the output
 		if (p == null) return; // empty subtree
+		if (depth == 0) { // truncate here
+			Element out = resultsDoc.createElement("truncated");
+			out.setAttribute("size", Integer.toString(p.size));
+			element.appendChild(out);
+			return;
+		}
 		Element out = resultsDoc.createElement("node");
 		out.setAttribute("name", p.point.getName());
 		out.setAttribute("x", Integer.toString((int) p.point.getX()));
 		out.setAttribute("y", Integer.toString((int) p.point.getY()));
 		element.appendChild(out);
 
-        print(out, p.left); // recurse on children
-        print(out, p.right);
+        print(out, p.left, depth - 1); // recurse on children
+        print(out, p.right, depth - 1);
     }
 
 	/**
@@ -213,7 +338,9 @@ public class BinarySearchTree<P extends NamedPoint2D> {
 	private Node root; // root of tree
 	private final Comparator<P> comparator; // comparator for ordering the tree
 	private int size; // number of elements in tree
-	private final Document resultsDoc; // results document (for printing)
+	private final BalancePolicy policy; // balance policy (null for an unbalanced tree)
+	private int maxSize; // upper bound on the size since the last rebuild of the whole tree
+	private boolean tooDeep; // did the current insertion exceed the height bound?
 
 	// -----------------------------------------------------------------
 	// Public members
@@ -225,11 +352,24 @@ public class BinarySearchTree<P extends NamedPoint2D> {
 	 *
 	 * @param comparator The comparator used for ordering the tree.
 	 */
-	public BinarySearchTree(Comparator<P> comparator, Document resultsDoc) {
+	public BinarySearchTree(Comparator<P> comparator) {
+		this(comparator, null);
+	}
+
+	/**
+	 * Creates an empty tree that is kept balanced as a scapegoat tree,
+	 * so that its height stays logarithmic whatever the order of the
+	 * insertions.
+	 *
+	 * @param comparator The comparator used for ordering the tree.
+	 * @param policy The balance ratio and delete threshold (or null for
+	 *               an unbalanced tree)
+	 */
+	public BinarySearchTree(Comparator<P> comparator, BalancePolicy policy) {
 		root = null;
 		this.comparator = comparator;
-		this.resultsDoc = resultsDoc;
-		size = 0;
+		this.policy = policy;
+		size = maxSize = 0;
 	}
 
 	/**
@@ -257,7 +397,9 @@ public class BinarySearchTree<P extends NamedPoint2D> {
 	 * @param point The point to be inserted
 	 */
 	public void insert(P point) throws Exception {
-		root = insert(point, root);
+		maxSize = Math.max(maxSize, size + 1);
+		tooDeep = false;
+		root = insert(point, root, 0);
 		size++;
 		if (DEBUG) {
 			System.out.println("Binary search tree: After inserting " + point + System.lineSeparator() + debugPrint("  ", root));
@@ -272,6 +414,10 @@ public class BinarySearchTree<P extends NamedPoint2D> {
 	public void delete(P point) throws Exception {
 		root = delete(point, root);
 		size--;
+		if (policy != null && root != null && policy.needsRebuild(size, maxSize)) {
+			root = rebuild(root);
+			maxSize = size;
+		}
 		if (DEBUG) {
 			System.out.println("Binary search tree: After deleting " + point + System.lineSeparator() + debugPrint("  ", root));
 		}
@@ -282,7 +428,7 @@ public class BinarySearchTree<P extends NamedPoint2D> {
 	 */
 	public void clear() {
 		root = null;
-		size = 0;
+		size = maxSize = 0;
 	}
 
 	/**
@@ -298,6 +444,48 @@ public class BinarySearchTree<P extends NamedPoint2D> {
 		return list;
 	}
 
+	/**
+	 * Return a page of entries. This is the part of entryList() that
+	 * starts at the given position and has at most the given length.
+	 *
+	 * @param offset The position (from 0) of the first entry
+	 * @param limit The maximum number of entries
+	 * @return The list of entries on the page
+	 */
+	public ArrayList<P> entryList(int offset, int limit) {
+		ArrayList<P> list = new ArrayList<P>();
+		pageList(list, offset, limit, root);
+		return list;
+	}
+
+	/**
+	 * Return a list of the entries between two bounds (inclusive), in
+	 * order. The bounds need only have enough information to satisfy
+	 * the comparator.
+	 *
+	 * @param lo The lower bound
+	 * @param hi The upper bound
+	 * @return The list of entries lo <= e <= hi
+	 */
+	public ArrayList<P> rangeList(P lo, P hi) {
+		return rangeList(lo, hi, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Return a list of the first entries between two bounds
+	 * (inclusive), in order.
+	 *
+	 * @param lo The lower bound
+	 * @param hi The upper bound
+	 * @param limit The maximum number of entries
+	 * @return The list of at most limit entries lo <= e <= hi
+	 */
+	public ArrayList<P> rangeList(P lo, P hi, int limit) {
+		ArrayList<P> list = new ArrayList<P>();
+		rangeList(list, lo, hi, limit, root);
+		return list;
+	}
+
 	/**
 	 * Print the tree. This is used for the command
 	 * printBinarySearchTree.
@@ -305,11 +493,63 @@ public class BinarySearchTree<P extends NamedPoint2D> {
 	 * @param output The output XML document
 	 */
     public void print(Element element) {
+        print(element, Integer.MAX_VALUE);
+    }
+
+	/**
+	 * Print the top levels of the tree. Subtrees rooted at the given
+	 * depth are replaced by a "truncated" element carrying their size.
+	 *
+	 * @param element The output XML element
+	 * @param maxDepth The number of levels to print
+	 */
+    public void print(Element element, int maxDepth) {
+        Document resultsDoc = element.getOwnerDocument(); // document receiving the output
         Element out = resultsDoc.createElement("binarysearchtree");
         element.appendChild(out);
         if (root != null) {
-        	print(out, root);
+        	print(out, root, maxDepth);
+        }
+    }
+
+	/**
+	 * Print a summary of the tree's shape instead of its contents:
+	 * the size and height, and for each level the number of nodes and
+	 * the worst balance ratio (larger child size over node size). Only
+	 * the levels above maxDepth are summarized.
+	 *
+	 * @param element The output XML element
+	 * @param maxDepth The number of levels to summarize
+	 */
+    public void printSummary(Element element, int maxDepth) {
+        Document resultsDoc = element.getOwnerDocument(); // document receiving the output
+        Element out = resultsDoc.createElement("binarysearchtree");
+        element.appendChild(out);
+        Element summary = resultsDoc.createElement("summary");
+        out.appendChild(summary);
+        summary.setAttribute("size", Integer.toString(size));
+        ArrayList<Node> level = new ArrayList<Node>(); // nodes of the current level
+        if (root != null) level.add(root);
+        int height = -1; // height of the tree (number of edges)
+        while (!level.isEmpty()) {
+        	height++;
+        	ArrayList<Node> next = new ArrayList<Node>();
+        	float maxBalance = 0;
+        	for (Node p : level) {
+        		maxBalance = Math.max(maxBalance, (float) Math.max(getSize(p.left), getSize(p.right)) / p.size);
+        		if (p.left != null) next.add(p.left);
+        		if (p.right != null) next.add(p.right);
+        	}
+        	if (height < maxDepth) {
+        		Element lev = resultsDoc.createElement("level");
+        		lev.setAttribute("depth", Integer.toString(height));
+        		lev.setAttribute("nodes", Integer.toString(level.size()));
+        		lev.setAttribute("maxBalance", String.format(Locale.US, "%.3f", maxBalance));
+        		summary.appendChild(lev);
+        	}
+        	level = next;
         }
+        summary.setAttribute("height", Integer.toString(Math.max(height, 0)));
     }
 
 	/**
@@ -0,0 +1,76 @@
+package cmsc420.meeshquest.part2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An output stream that writes a file through a large direct buffer, which is
+ * handed to the file channel whole when it fills up. This avoids the small
+ * buffer and per-write locking of a PrintStream on System.out.
+ */
+public class ChannelOutputStream extends OutputStream {
+
+	// Default size of the buffer
+	public final static int DEFAULT_BUFFER_SIZE = 8 << 20;
+
+	private final FileChannel channel; // the file
+	private final ByteBuffer buf; // bytes not yet written
+
+	/**
+	 * Creates (or truncates) a file for output.
+	 *
+	 * @param fileName   The name of the file
+	 * @param bufferSize The size of the buffer, in bytes
+	 * @throws IOException If the file cannot be opened
+	 */
+	public ChannelOutputStream(String fileName, int bufferSize) throws IOException {
+		channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		buf = ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	public void write(int b) throws IOException {
+		if (!buf.hasRemaining()) {
+			drain();
+		}
+		buf.put((byte) b);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (!buf.hasRemaining()) {
+				drain();
+			}
+			int n = Math.min(len, buf.remaining());
+			buf.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	public void flush() throws IOException {
+		drain();
+	}
+
+	public void close() throws IOException {
+		if (channel.isOpen()) {
+			drain();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Write out the buffered bytes.
+	 */
+	private void drain() throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		buf.clear();
+	}
+}
@@ -12,7 +12,7 @@ public class City implements NamedPoint2D {
 	
 	private final Point2D point; // city location
     private final String name; // city name
-    private final String color; // city color
+    private final int color; // city color (encoded by SymbolTable)
     private final float radius; // city radius
 
     /**
@@ -25,8 +25,8 @@ public class City implements NamedPoint2D {
      */
     public City(float x, float y, String name, String color, float radius) {
         this.point = new Point2D(x, y);
-        this.name = name;
-        this.color = color;
+        this.name = SymbolTable.internName(name);
+        this.color = SymbolTable.encodeColor(color);
         this.radius = radius;
     }
     
@@ -37,8 +37,21 @@ public class City implements NamedPoint2D {
      */
     public City(String name) {
     	this.point = new Point2D();
-        this.name = name;
-        this.color = "black";
+        this.name = SymbolTable.internName(name);
+        this.color = SymbolTable.BLACK;
+        this.radius = 0;
+    }
+    
+    /**
+     * City constructor from coordinates alone.
+     * 
+     * @param x City's x-coordinate
+     * @param y City's y-coordinate
+     */
+    public City(float x, float y) {
+    	this.point = new Point2D(x, y);
+        this.name = "";
+        this.color = SymbolTable.BLACK;
         this.radius = 0;
     }
     
@@ -68,6 +81,10 @@ public class City implements NamedPoint2D {
     }
 
     public String getColor() {
+        return SymbolTable.decodeColor(color);
+    }
+
+    public int getColorCode() {
         return color;
     }
 
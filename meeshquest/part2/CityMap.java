@@ -0,0 +1,290 @@
+package cmsc420.meeshquest.part2;
+
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * One map of cities: its extent and the dictionaries that index its cities. A
+ * process can host many independent maps. Commands on a map must hold the map's
+ * lock, so that different maps can be worked on concurrently.
+ *
+ * Most commands hold the lock exclusively. On a sharded map, createCity and
+ * deleteCity share it, and hold the lock of the city's shard instead, so that
+ * writes to different shards run in parallel. They then check and update the
+ * name tree and caches under the dictionary lock, and the coordinate tree under
+ * the coordinate lock. Both are taken after the shard lock, and held only for
+ * one tree update each, so that writers spend little time serialized.
+ */
+public class CityMap {
+
+	// Number of nearestNeighbor results kept in the cache
+	private final static int NEAR_CACHE_SIZE = 1024;
+
+	// Names of the spatial index engines
+	public final static String KDTREE_INDEX = "kdtree";
+	public final static String QUADTREE_INDEX = "quadtree";
+	public final static String GRID_INDEX = "grid";
+	public final static String INT_KDTREE_INDEX = "intkdtree";
+
+	// Engine used by maps that do not name one (set at startup)
+	private static volatile String defaultIndex = KDTREE_INDEX;
+
+	// Case policy of maps that do not give one (set at startup)
+	private static volatile boolean defaultIgnoreCase = false;
+
+	final float mapWidth; // width of the map (x-extent)
+	final float mapHeight; // height of the map (y-extent)
+	final OrderByName<City> nameOrder; // order of names, and which names are duplicates
+	final BinarySearchTree<City> bsTreeByName; // binary-search tree (sorted by name)
+	final BinarySearchTree<City> bsTreeByCoordinate; // balanced binary-search tree (sorted by coordinate)
+	final SpatialIndex<City> spatialIndex; // spatial index (sorted by coordinate)
+	final BalancePolicy balancePolicy; // balance policy of the map's kd-trees
+	final NearestNeighborCache<City> nearCache; // cached nearestNeighbor results
+	final HashMap<String, Element> cityListCache; // rendered city lists by sort order (owned by cacheDoc)
+	private Document cacheDoc; // document owning the rendered city lists (created on first use)
+	final ReentrantReadWriteLock lock; // lock of the map (shared only by writes to a shard)
+	final Object dictionaryLock; // guards the name tree and caches while the map lock is shared
+	final Object coordinateLock; // guards the coordinate tree while the map lock is shared
+	private volatile long lastUsed; // when a command last started or ended on the map (System.nanoTime)
+
+	/**
+	 * Creates an empty map using the default spatial index.
+	 *
+	 * @param mapWidth  Width of the map (x-extent)
+	 * @param mapHeight Height of the map (y-extent)
+	 */
+	public CityMap(float mapWidth, float mapHeight) {
+		this(mapWidth, mapHeight, null, 1, new BalancePolicy(), false, 0, defaultIgnoreCase);
+	}
+
+	/**
+	 * Creates an empty map. With a grid of more than one shard, the map uses a
+	 * sharded kd-tree, so no other index may be named. Lazy deletion and
+	 * background rebuilds are options of the kd-tree alone.
+	 *
+	 * @param mapWidth   Width of the map (x-extent)
+	 * @param mapHeight  Height of the map (y-extent)
+	 * @param index      Name of the spatial index engine (or null for the default)
+	 * @param gridSize   Number of shards along each side of the map
+	 * @param policy     Balance policy of the map's kd-trees
+	 * @param lazyDelete Whether the map's kd-trees delete lazily (tombstones)
+	 * @param asyncRebuild Smallest kd-tree rebuild done in the background (0 for
+	 *                   none)
+	 * @param ignoreCase Whether city names that differ only in case are the same
+	 *                   name
+	 */
+	public CityMap(float mapWidth, float mapHeight, String index, int gridSize, BalancePolicy policy,
+			boolean lazyDelete, int asyncRebuild, boolean ignoreCase) {
+		this.mapWidth = mapWidth;
+		this.mapHeight = mapHeight;
+		this.balancePolicy = policy;
+		this.nameOrder = new OrderByName<City>(ignoreCase);
+		this.bsTreeByName = new BinarySearchTree<City>(nameOrder);
+		this.bsTreeByCoordinate = new BinarySearchTree<City>(new OrderByCoordinate<City>(), new BalancePolicy());
+		this.spatialIndex = newSpatialIndex(index, gridSize, lazyDelete, asyncRebuild);
+		this.nearCache = new NearestNeighborCache<City>(NEAR_CACHE_SIZE);
+		this.cityListCache = new HashMap<String, Element>();
+		this.lock = new ReentrantReadWriteLock();
+		this.dictionaryLock = new Object();
+		this.coordinateLock = new Object();
+		this.lastUsed = System.nanoTime();
+	}
+
+	/**
+	 * Creates the spatial index of the map.
+	 *
+	 * @param index      Name of the spatial index engine (or null for the default)
+	 * @param gridSize   Number of shards along each side of the map
+	 * @param lazyDelete Whether kd-trees delete lazily
+	 * @param asyncRebuild Smallest kd-tree rebuild done in the background
+	 * @return The new, empty index
+	 */
+	private SpatialIndex<City> newSpatialIndex(String index, int gridSize, boolean lazyDelete, int asyncRebuild) {
+		if (asyncRebuild < 0) {
+			throw new IllegalArgumentException("negative asyncRebuild: " + asyncRebuild);
+		}
+		if (gridSize < 1) {
+			throw new IllegalArgumentException("shards must be positive: " + gridSize);
+		}
+		if (gridSize > 1) {
+			if (index != null && !index.equals(KDTREE_INDEX)) {
+				throw new IllegalArgumentException("only kd-trees are sharded, not " + index);
+			}
+			return new ShardedSGTree<City>(mapWidth, mapHeight, gridSize, balancePolicy, lazyDelete, asyncRebuild);
+		}
+		if (index == null) {
+			index = defaultIndex;
+		}
+		if (!index.equals(KDTREE_INDEX) && (lazyDelete || asyncRebuild > 0)) {
+			throw new IllegalArgumentException("lazyDelete and asyncRebuild need a kd-tree, not " + index);
+		}
+		if (index.equals(KDTREE_INDEX)) {
+			return new SGTree<City>(balancePolicy, lazyDelete, asyncRebuild);
+		} else if (index.equals(QUADTREE_INDEX)) {
+			return new PRQuadtree<City>(mapWidth, mapHeight);
+		} else if (index.equals(GRID_INDEX)) {
+			return new GridIndex<City>(mapWidth, mapHeight);
+		} else if (index.equals(INT_KDTREE_INDEX)) {
+			if (!IntKdTree.fits(mapWidth, mapHeight)) {
+				throw new IllegalArgumentException("map too large for integer coordinates");
+			}
+			return new IntKdTree<City>(balancePolicy);
+		} else {
+			throw new IllegalArgumentException("unknown spatial index: " + index);
+		}
+	}
+
+	/**
+	 * Sets the spatial index engine of maps created without naming one.
+	 *
+	 * @param index Name of the spatial index engine
+	 */
+	public static void setDefaultIndex(String index) {
+		if (!index.equals(KDTREE_INDEX) && !index.equals(QUADTREE_INDEX) && !index.equals(GRID_INDEX)
+				&& !index.equals(INT_KDTREE_INDEX)) {
+			throw new IllegalArgumentException("unknown spatial index: " + index);
+		}
+		defaultIndex = index;
+	}
+
+	/**
+	 * Sets the case policy of maps created without giving one.
+	 *
+	 * @param ignoreCase Whether city names are compared ignoring case
+	 */
+	public static void setDefaultIgnoreCase(boolean ignoreCase) {
+		defaultIgnoreCase = ignoreCase;
+	}
+
+	/**
+	 * The case policy of maps created without giving one.
+	 *
+	 * @return Whether city names are compared ignoring case
+	 */
+	public static boolean getDefaultIgnoreCase() {
+		return defaultIgnoreCase;
+	}
+
+	/**
+	 * The cache of nearestNeighbor results, for reporting its hit and miss counts.
+	 *
+	 * @return The nearest-neighbor cache
+	 */
+	public NearestNeighborCache<City> getNearCache() {
+		return nearCache;
+	}
+
+	/**
+	 * Can a city at the given coordinates be added to the map? It must lie within
+	 * the map's extent and, with an integer kd-tree, have integer coordinates of
+	 * the tree's range.
+	 *
+	 * @param x The city's x-coordinate
+	 * @param y The city's y-coordinate
+	 * @return True if the city may be added
+	 */
+	boolean inBounds(float x, float y) {
+		return x <= mapWidth && y <= mapHeight
+				&& (!(spatialIndex instanceof IntKdTree) || IntKdTree.fits(x, y));
+	}
+
+	/**
+	 * The document into which city lists are rendered for the cache. It belongs to
+	 * the map, so a cached list does not keep alive the results of the batch that
+	 * first listed it, and later batches (on other server connections) copy from
+	 * it instead. A cached list holds an element per city, so for a large map the
+	 * cache takes about as much memory as the listing itself. The caller must hold
+	 * the map's lock exclusively.
+	 *
+	 * @return The document owning the cached lists
+	 */
+	Document cacheDocument() {
+		if (cacheDoc == null) {
+			try {
+				cacheDoc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+			} catch (ParserConfigurationException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return cacheDoc;
+	}
+
+	/**
+	 * Can createCity and deleteCity share the map's lock? They can if the map is
+	 * sharded, as each then holds the lock of its city's shard.
+	 *
+	 * @return True if the map's spatial index is sharded
+	 */
+	boolean hasShardedWrites() {
+		return spatialIndex instanceof ShardedSGTree;
+	}
+
+	/**
+	 * The lock to hold while writing a city to the spatial index: the lock of the
+	 * city's shard on a sharded map, or else the dictionary lock (as the whole map
+	 * is held anyway).
+	 *
+	 * @param city The city
+	 * @return The lock
+	 */
+	Object writeLockFor(City city) {
+		if (hasShardedWrites()) {
+			return ((ShardedSGTree<City>) spatialIndex).lockFor(city);
+		}
+		return dictionaryLock;
+	}
+
+	/**
+	 * Records that a command is using the map. Commands call this when they start
+	 * and when they end, so a map is not idle while a long command runs.
+	 */
+	void touch() {
+		lastUsed = System.nanoTime();
+	}
+
+	/**
+	 * Has no command used the map for a while?
+	 *
+	 * @param millis The length of the while, in milliseconds
+	 * @return True if no command started or ended in that time
+	 */
+	boolean isIdle(long millis) {
+		return System.nanoTime() - lastUsed >= millis * 1000000L;
+	}
+
+	/**
+	 * Would compact do any work? The caller must hold the map's lock
+	 * exclusively.
+	 *
+	 * @return True if the spatial index has lazily deleted cities or a pending
+	 *         rebuild
+	 */
+	boolean needsCompaction() {
+		return spatialIndex.needsCompaction();
+	}
+
+	/**
+	 * Purges lazily deleted cities from the map's spatial index, and finishes any
+	 * background rebuild. The caller must hold the map's lock exclusively.
+	 */
+	void compact() {
+		spatialIndex.compact();
+	}
+
+	/**
+	 * Removes all cities from the map.
+	 */
+	void clear() {
+		spatialIndex.clear();
+		bsTreeByName.clear();
+		bsTreeByCoordinate.clear();
+		nearCache.clear();
+		cityListCache.clear();
+	}
+}
@@ -1,5 +1,12 @@
 package cmsc420.meeshquest.part2;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+
 import org.w3c.dom.*;
 
 /**
@@ -17,26 +24,51 @@ public class CommandHandler {
 	private final static String PRINT_KDTREE = "printKdTree";
 	private final static String PRINT_BSTREE = "printBinarySearchTree";
 	private final static String NEAR = "nearestNeighbor";
+	private final static String CREATE_MAP = "createMap";
+	private final static String COVERING = "citiesCovering";
+	private final static String DELETE_RANGE = "deleteCitiesInRange";
+	private final static String PRINT_STATS = "printStats";
+	private final static String CITIES_BY_NAME = "citiesByName";
+	private final static String BATCH = "batch";
 
 	// Parameter lists for various commands
-	private final static String[] CREATE_CITY_PARAMS = { "name", "x", "y", "radius", "color" };
-	private final static String[] DELETE_CITY_PARAMS = { "name" };
-	private final static String[] LIST_CITY_PARAMS = { "sortBy" };
-	private final static String[] CLEAR_ALL_PARAMS = {};
-	private final static String[] PRINT_KDTREE_PARAMS = {};
-	private final static String[] PRINT_BSTREE_PARAMS = {};
-	private final static String[] NEAR_PARAMS = { "x", "y" };
+	private final static String[] CREATE_CITY_PARAMS = { "name", "x", "y", "radius", "color", "map" };
+	private final static String[] DELETE_CITY_PARAMS = { "name", "map" };
+	private final static String[] LIST_CITY_PARAMS = { "sortBy", "offset", "limit", "map" };
+	private final static String[] CLEAR_ALL_PARAMS = { "map" };
+	private final static String[] PRINT_KDTREE_PARAMS = { "maxDepth", "summary", "map" };
+	private final static String[] PRINT_BSTREE_PARAMS = { "maxDepth", "summary", "map" };
+	private final static String[] NEAR_PARAMS = { "x", "y", "epsilon", "color", "map" };
+	private final static String[] COVERING_PARAMS = { "x", "y", "color", "map" };
+	private final static String[] DELETE_RANGE_PARAMS = { "x", "y", "width", "height", "radius", "map" };
+	private final static String[] PRINT_STATS_PARAMS = { "map" };
+	private final static String[] CITIES_BY_NAME_PARAMS = { "prefix", "from", "to", "limit", "map" };
+	private final static String[] BATCH_PARAMS = { "map" };
+	private final static String[] NO_PARAMS = {};
+	private final static String[] CREATE_MAP_PARAMS = { "name", "spatialWidth", "spatialHeight", "index", "shards",
+			"alpha", "deleteThreshold", "balance", "lazyDelete", "asyncRebuild", "ignoreCase" };
 
 	// Parameter values for "listCities" command
 	private final static String SORT_BY_NAME = "name";
 	private final static String SORT_BY_COORDINATE = "coordinate";
 
+	// Upper bound of the names with a given prefix: sorts after every character of
+	// a city name
+	private final static char NAME_MAX = Character.MAX_VALUE;
+
+	// Color code of a query color that no city has (see colorFromCmd)
+	private final static int NO_SUCH_COLOR = -2;
+
+	// City colors allowed by the input schema
+	private final static String[] COLORS = { "red", "green", "blue", "yellow", "purple", "orange", "black" };
+
+	// Name of the map used by commands without a "map" parameter
+	private final static String DEFAULT_MAP = "";
+
 	private Document resultsDoc; // document into which results will be written
 	private Element resultsRoot; // root element of resultsDoc
-	private BinarySearchTree<City> bsTreeByName; // binary-search tree (sorted by name)
-	private SGTree<City> sgTreeByCoordinate; // SG tree (sorted by coordinate)
-	private float mapWidth;
-	private float mapHeight;
+	private final ConcurrentHashMap<String, CityMap> maps; // maps by name
+	private boolean checkParams; // check the parameters of each command (input not validated)?
 
 	/**
 	 * Main constructor from the results document and size of the map.
@@ -46,21 +78,67 @@ public class CommandHandler {
 	 * @param mapHeight  Height of the map (y-extent)
 	 */
 	public CommandHandler(Document resultsDoc, float mapWidth, float mapHeight) {
-		this.mapWidth = mapWidth;
-		this.mapHeight = mapHeight;
+		this(resultsDoc, new ConcurrentHashMap<String, CityMap>(), mapWidth, mapHeight);
+	}
+
+	/**
+	 * Constructor for a handler that shares its maps with other handlers. Handlers
+	 * on different threads may work on the same collection of maps; each command
+	 * locks only the map it uses. The default map is created with the given size
+	 * if it does not exist yet.
+	 * 
+	 * @param resultsDoc XML document containing the results
+	 * @param maps       The maps, by name
+	 * @param mapWidth   Width of the default map (x-extent)
+	 * @param mapHeight  Height of the default map (y-extent)
+	 */
+	public CommandHandler(Document resultsDoc, ConcurrentHashMap<String, CityMap> maps, float mapWidth,
+			float mapHeight) {
+		setResultsDocument(resultsDoc);
+		this.maps = maps;
+		maps.putIfAbsent(DEFAULT_MAP, new CityMap(mapWidth, mapHeight));
+	}
+
+	/**
+	 * Direct the results of subsequent commands to a new document. The cities and
+	 * trees are kept, so a long-running process can answer many command batches,
+	 * each with its own results document.
+	 * 
+	 * @param resultsDoc XML document to contain the results
+	 */
+	public void setResultsDocument(Document resultsDoc) {
 		this.resultsDoc = resultsDoc;
 		this.resultsRoot = resultsDoc.createElement("results");
 		resultsDoc.appendChild(resultsRoot); // root element
-		// create the associated tree structures
-		this.bsTreeByName = new BinarySearchTree<City>(new OrderByName<City>(), resultsDoc);
-		this.sgTreeByCoordinate = new SGTree<City>( resultsDoc);
-		
+	}
+
+	/**
+	 * Choose whether each command's parameters are checked before it runs. This
+	 * is needed when the input was parsed without validation against the schema.
+	 * An unknown command, or one whose parameters are missing or malformed, then
+	 * results in an "invalidParameters" error, instead of failing the whole input.
+	 * 
+	 * @param checkParams Whether to check the parameters
+	 */
+	public void setCheckParameters(boolean checkParams) {
+		this.checkParams = checkParams;
+	}
+
+	/**
+	 * Look up a map by name.
+	 * 
+	 * @param name The map name ("" for the default map)
+	 * @return The map, or null if there is no map of this name
+	 */
+	public CityMap getMap(String name) {
+		return maps.get(name);
 	}
 
 	/**
 	 * Takes a map containing set of parameter name-value pairs and appends a list
 	 * of parameter elements. This is used in the success and error handlers to
-	 * generate a summary of the command parameters.
+	 * generate a summary of the command parameters. Optional parameters that are
+	 * absent from the command are skipped.
 	 * 
 	 * @param paramNames Names of the parameters to be output
 	 * @param inParams   A map of parameter name-value pairs
@@ -69,6 +147,9 @@ public class CommandHandler {
 	private void applyInParamsToOutParams(String[] paramNames, NamedNodeMap inParams, Element outParams) {
 		for (int i = 0; i < paramNames.length; ++i) {
 			Attr inParam = (Attr) inParams.getNamedItem(paramNames[i]);
+			if (inParam == null) {
+				continue; // optional parameter not given
+			}
 			Element outParam = resultsDoc.createElement(inParam.getName());
 			outParam.setAttribute("value", inParam.getValue());
 			outParams.appendChild(outParam);
@@ -98,11 +179,144 @@ public class CommandHandler {
 			return PRINT_BSTREE_PARAMS;
 		case NEAR:
 			return NEAR_PARAMS;
+		case CREATE_MAP:
+			return CREATE_MAP_PARAMS;
+		case COVERING:
+			return COVERING_PARAMS;
+		case DELETE_RANGE:
+			return DELETE_RANGE_PARAMS;
+		case PRINT_STATS:
+			return PRINT_STATS_PARAMS;
+		case CITIES_BY_NAME:
+			return CITIES_BY_NAME_PARAMS;
+		case BATCH:
+			return BATCH_PARAMS;
 		default:
 			throw new UnsupportedOperationException("unknown command: `" + cmd.getNodeName() + "`");
 		}
 	}
 
+	/**
+	 * Is a command one of those the handler processes?
+	 * 
+	 * @param cmd The command
+	 * @return True if paramsListFromCmd knows the command
+	 */
+	private boolean isKnownCommand(Element cmd) {
+		try {
+			paramsListFromCmd(cmd);
+			return true;
+		} catch (UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Check the parameters that a command's handler reads: those it requires must
+	 * be present, and numbers, city names, colors and sort orders must be well
+	 * formed. Other parameters are ignored, as is createMap, which checks its own.
+	 * 
+	 * @param cmd The command
+	 * @return True if the command can be handled
+	 */
+	private boolean hasValidParams(Element cmd) {
+		switch (cmd.getNodeName()) {
+		case CREATE_CITY:
+			return isCityName(cmd.getAttribute("name")) && isInteger(cmd, "x", true) && isInteger(cmd, "y", true)
+					&& isInteger(cmd, "radius", true) && isColor(cmd.getAttribute("color"));
+		case DELETE_CITY:
+			return isCityName(cmd.getAttribute("name"));
+		case LIST_CITIES:
+			return (cmd.getAttribute("sortBy").equals(SORT_BY_NAME)
+					|| cmd.getAttribute("sortBy").equals(SORT_BY_COORDINATE)) && isInteger(cmd, "offset", false)
+					&& isInteger(cmd, "limit", false);
+		case PRINT_KDTREE:
+		case PRINT_BSTREE:
+			return isInteger(cmd, "maxDepth", false);
+		case NEAR:
+			return isInteger(cmd, "x", true) && isInteger(cmd, "y", true) && isEpsilon(cmd)
+					&& (!cmd.hasAttribute("color") || isColor(cmd.getAttribute("color")));
+		case COVERING:
+			return isInteger(cmd, "x", true) && isInteger(cmd, "y", true)
+					&& (!cmd.hasAttribute("color") || isColor(cmd.getAttribute("color")));
+		case CITIES_BY_NAME:
+			return isInteger(cmd, "limit", false);
+		case DELETE_RANGE:
+			return isInteger(cmd, "x", true) && isInteger(cmd, "y", true) && (cmd.hasAttribute("radius")
+					? isInteger(cmd, "radius", true)
+					: isInteger(cmd, "width", true) && isInteger(cmd, "height", true));
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Is a parameter an integer (or absent, if it is optional)?
+	 */
+	private static boolean isInteger(Element cmd, String param, boolean required) {
+		if (!cmd.hasAttribute(param)) {
+			return !required;
+		}
+		try {
+			Integer.parseInt(cmd.getAttribute(param));
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Is a parameter a number (or absent, if it is optional)?
+	 */
+	private static boolean isNumber(Element cmd, String param, boolean required) {
+		if (!cmd.hasAttribute(param)) {
+			return !required;
+		}
+		try {
+			Float.parseFloat(cmd.getAttribute(param));
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Is the "epsilon" parameter absent, or a number of at least 0?
+	 */
+	private static boolean isEpsilon(Element cmd) {
+		return !cmd.hasAttribute("epsilon")
+				|| (isNumber(cmd, "epsilon", true) && Float.parseFloat(cmd.getAttribute("epsilon")) >= 0);
+	}
+
+	/**
+	 * Is a string a city name: a letter or underscore, followed by letters, digits
+	 * and underscores?
+	 */
+	private static boolean isCityName(String s) {
+		if (s.isEmpty() || Character.isDigit(s.charAt(0))) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (!(c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Is a string one of the colors of the schema?
+	 */
+	private static boolean isColor(String s) {
+		for (String color : COLORS) {
+			if (color.equals(s)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Generates an error output element. It creates a number of elements that
 	 * summarize the command. In contrast to handleSuccess, which is given the
@@ -110,8 +324,9 @@ public class CommandHandler {
 	 * 
 	 * @param errType The type of error (stored as the tag of the error element)
 	 * @param inCmd   The input command generating this error
+	 * @return The error element
 	 */
-	private void handleError(String errType, Element inCmd) {
+	private Element handleError(String errType, Element inCmd) {
 		Element outErr = resultsDoc.createElement("error");
 		resultsRoot.appendChild(outErr);
 		outErr.setAttribute("type", errType);
@@ -124,7 +339,9 @@ public class CommandHandler {
 		outErr.appendChild(outParams);
 
 		NamedNodeMap inParams = inCmd.getAttributes();
-		applyInParamsToOutParams(paramsListFromCmd(inCmd), inParams, outParams);
+		applyInParamsToOutParams(isKnownCommand(inCmd) ? paramsListFromCmd(inCmd) : NO_PARAMS, inParams,
+				outParams);
+		return outErr;
 	}
 
 	/**
@@ -155,11 +372,29 @@ public class CommandHandler {
 	/**
 	 * Process the createCity command. This checks whether a city of the name or
 	 * coordinates exists, and if so it generates the appropriate error element.
-	 * Otherwise, it inserts the city into the binary search tree and the SG tree.
+	 * Otherwise, it inserts the city into the binary search trees and the spatial index.
 	 * 
 	 * @param cmd The command element
+	 * @param map The map the command works on
+	 */
+	private void createCity(Element cmd, CityMap map) {
+		String error = addCity(cmd, map);
+		if (error != null) {
+			handleError(error, cmd);
+			return;
+		}
+		handleSuccess(cmd, resultsDoc.createElement("output")); // output is trivial
+	}
+
+	/**
+	 * Add the city described by a createCity command to a map, unless it is out
+	 * of bounds or a city of the same name or coordinates exists.
+	 * 
+	 * @param cmd The createCity command
+	 * @param map The map the command works on
+	 * @return The type of the error, or null if the city was added
 	 */
-	private void createCity(Element cmd) {
+	private String addCity(Element cmd, CityMap map) {
 		// Parse data
 		String name = cmd.getAttribute("name");
 		float x = Float.parseFloat(cmd.getAttribute("x"));
@@ -170,32 +405,78 @@ public class CommandHandler {
 		// Create city
 		City city = new City(x, y, name, color, radius);
 
-		if (x > mapWidth || y > mapHeight) {
-			handleError("cityOutOfBounds", cmd);
-			return;
+		if (!map.inBounds(x, y)) {
+			return "cityOutOfBounds";
 		}
 
-		// Test whether the city exists (by name or coordinates)
-		City altCity = sgTreeByCoordinate.find(city);
-		if (altCity != null) {
-			handleError("duplicateCityCoordinates", cmd);
-			return;
+		synchronized (map.writeLockFor(city)) {
+			// Test whether the city exists (by name or coordinates)
+			City altCity = map.spatialIndex.find(city);
+			if (altCity != null) {
+				return "duplicateCityCoordinates";
+			}
+			synchronized (map.dictionaryLock) {
+				altCity = map.bsTreeByName.find(city);
+				if (altCity != null) {
+					return "duplicateCityName";
+				}
+				insertEntries(city, map);
+			}
+			insertIntoIndex(city, map);
 		}
-		altCity = bsTreeByName.find(city);
-		if (altCity != null) {
-			handleError("duplicateCityName", cmd);
-			return;
+		return null;
+	}
+
+	/**
+	 * Insert a city into the dictionaries of a map. The city must be new.
+	 * 
+	 * @param city The city
+	 * @param map  The map
+	 */
+	private void insertCity(City city, CityMap map) {
+		synchronized (map.writeLockFor(city)) {
+			synchronized (map.dictionaryLock) {
+				insertEntries(city, map);
+			}
+			insertIntoIndex(city, map);
 		}
+	}
 
-		// Insert the city
+	/**
+	 * Insert a city into the name tree of a map, and update its caches. The caller
+	 * must hold the dictionary lock.
+	 * 
+	 * @param city The city
+	 * @param map  The map
+	 */
+	private void insertEntries(City city, CityMap map) {
+		map.nearCache.invalidate();
+		map.cityListCache.clear();
 		try {
-			bsTreeByName.insert(city); // insert into binary search tree
-			sgTreeByCoordinate.insert(city); // insert into SG tree
+			map.bsTreeByName.insert(city); // insert into binary search tree
 		} catch (Exception e) {
-			assert (false); // Huh? Above test should have caught errors
+			assert (false); // Huh? Caller should have caught errors
 		}
+	}
 
-		handleSuccess(cmd, resultsDoc.createElement("output")); // output is trivial
+	/**
+	 * Insert a city into the coordinate tree and the spatial index of a map. The
+	 * caller must hold the city's write lock, which keeps other writes off its
+	 * coordinates.
+	 * 
+	 * @param city The city
+	 * @param map  The map
+	 */
+	private void insertIntoIndex(City city, CityMap map) {
+		map.balancePolicy.recordWrite();
+		try {
+			synchronized (map.coordinateLock) {
+				map.bsTreeByCoordinate.insert(city); // insert into coordinate index
+			}
+			map.spatialIndex.insert(city); // insert into spatial index
+		} catch (Exception e) {
+			assert (false); // Huh? Caller should have caught errors
+		}
 	}
 
 	/**
@@ -205,26 +486,110 @@ public class CommandHandler {
 	 * search tree and delete it from both structures.
 	 * 
 	 * @param cmd The command element
+	 * @param map The map the command works on
 	 */
-	private void deleteCity(Element cmd) {
-		// Parse data
-		String name = cmd.getAttribute("name");
-		City nameOnly = new City(name); // Create a bogus city for look-up purposes only
-		City city = bsTreeByName.find(nameOnly);
+	private void deleteCity(Element cmd, CityMap map) {
+		City city = removeCity(cmd, map);
 		if (city == null) {
 			handleError("cityDoesNotExist", cmd);
 			return;
 		}
 
-		// Delete the city
+		Element output = resultsDoc.createElement("output");
+		addDeletedCity(city, output);
+		handleSuccess(cmd, output);
+	}
+
+	/**
+	 * Remove the city named by a deleteCity command from a map.
+	 * 
+	 * @param cmd The deleteCity command
+	 * @param map The map the command works on
+	 * @return The city removed, or null if there is no city of that name
+	 */
+	private City removeCity(Element cmd, CityMap map) {
+		// Parse data
+		String name = cmd.getAttribute("name");
+		City nameOnly = new City(name); // Create a bogus city for look-up purposes only
+		while (true) {
+			City city;
+			synchronized (map.dictionaryLock) {
+				city = map.bsTreeByName.find(nameOnly);
+			}
+			if (city == null) {
+				return null;
+			}
+			synchronized (map.writeLockFor(city)) { // the shard lock is taken before the dictionary lock
+				synchronized (map.dictionaryLock) {
+					if (map.bsTreeByName.find(nameOnly) != city) {
+						continue; // replaced by another write meanwhile
+					}
+					deleteEntries(city, map);
+				}
+				deleteFromIndex(city, map);
+			}
+			return city;
+		}
+	}
+
+	/**
+	 * Delete a city from the dictionaries of a map. The city must be in the map.
+	 * 
+	 * @param city The city
+	 * @param map  The map
+	 */
+	private void deleteCity(City city, CityMap map) {
+		synchronized (map.writeLockFor(city)) {
+			synchronized (map.dictionaryLock) {
+				deleteEntries(city, map);
+			}
+			deleteFromIndex(city, map);
+		}
+	}
+
+	/**
+	 * Delete a city from the name tree of a map, and update its caches. The caller
+	 * must hold the dictionary lock.
+	 * 
+	 * @param city The city
+	 * @param map  The map
+	 */
+	private void deleteEntries(City city, CityMap map) {
+		map.nearCache.invalidate();
+		map.cityListCache.clear();
 		try {
-			bsTreeByName.delete(city); // delete city
-			sgTreeByCoordinate.delete(city);
+			map.bsTreeByName.delete(city); // delete city
 		} catch (Exception e) {
-			assert (false); // Huh? Above test should have caught error
+			assert (false); // Huh? Caller should have caught error
 		}
+	}
 
-		Element output = resultsDoc.createElement("output");
+	/**
+	 * Delete a city from the coordinate tree and the spatial index of a map. The
+	 * caller must hold the city's write lock.
+	 * 
+	 * @param city The city
+	 * @param map  The map
+	 */
+	private void deleteFromIndex(City city, CityMap map) {
+		map.balancePolicy.recordWrite();
+		try {
+			synchronized (map.coordinateLock) {
+				map.bsTreeByCoordinate.delete(city);
+			}
+			map.spatialIndex.delete(city);
+		} catch (Exception e) {
+			assert (false); // Huh? Caller should have caught error
+		}
+	}
+
+	/**
+	 * Add the cityDeleted element for a deleted city to an output element.
+	 * 
+	 * @param city   The deleted city
+	 * @param output The output element
+	 */
+	private void addDeletedCity(City city, Element output) {
 		Element deletedCity = resultsDoc.createElement("cityDeleted");
 		output.appendChild(deletedCity);
 		deletedCity.setAttribute("name", city.getName());
@@ -232,18 +597,17 @@ public class CommandHandler {
 		deletedCity.setAttribute("y", Integer.toString((int) city.getY()));
 		deletedCity.setAttribute("color", city.getColor());
 		deletedCity.setAttribute("radius", Integer.toString((int) city.getRadius()));
-
-		handleSuccess(cmd, output);
 	}
 
 	/**
-	 * Creates the appropriate XML elements to represent a list of cities.
+	 * Creates the appropriate XML elements to represent a list of cities. The
+	 * element is created in the list's own document.
 	 * 
 	 * @param city     The city to add
 	 * @param cityList The list in which to add it
 	 */
 	private void addCityToListElement(City city, Element cityList) {
-		Element cityNode = resultsDoc.createElement("city");
+		Element cityNode = cityList.getOwnerDocument().createElement("city");
 		cityList.appendChild(cityNode);
 		cityNode.setAttribute("color", city.getColor());
 		cityNode.setAttribute("name", city.getName());
@@ -255,92 +619,381 @@ public class CommandHandler {
 	/**
 	 * Produce a list of cities in the results document. If the list is empty, a
 	 * "noCitiesToList" error is generated. If the "sortBy" parameter is not
-	 * recognized, an UnsupportedOperation exception is thrown.
+	 * recognized, an UnsupportedOperation exception is thrown. The rendered list
+	 * is cached per sort order until the next mutation, so repeated listings only
+	 * copy the cached elements.
+	 * 
+	 * The optional "offset" and "limit" parameters select a page of the listing.
+	 * Pages are read directly from the trees by rank and are not cached. A page
+	 * costs the depth of the tree plus its length: logarithmic in the number of
+	 * cities when sorted by coordinate, as the coordinate tree is balanced, but up
+	 * to linear when sorted by name, as the name tree is not. Offsets and limits
+	 * that are not integers are invalid parameters, even when the schema does not
+	 * check them.
 	 * 
 	 * @param cmd The XML element for this command
+	 * @param map The map the command works on
 	 */
-	private void listCities(Element cmd) throws UnsupportedOperationException {
+	private void listCities(Element cmd, CityMap map) throws UnsupportedOperationException {
+		if (!isInteger(cmd, "offset", false) || !isInteger(cmd, "limit", false)) {
+			handleError("invalidParameters", cmd);
+			return;
+		}
 		// Handle empty-tree error (in theory, both trees have the same size)
-		if (sgTreeByCoordinate.size() == 0 || bsTreeByName.size() == 0) {
+		if (map.spatialIndex.size() == 0 || map.bsTreeByName.size() == 0) {
 			handleError("noCitiesToList", cmd);
 			return;
 		}
 
 		String sortBy = cmd.getAttribute("sortBy"); // how to sort the list
 
+		if (cmd.hasAttribute("offset") || cmd.hasAttribute("limit")) {
+			listCitiesPage(cmd, map, sortBy);
+			return;
+		}
+
 		// Construct output
+		Element cityList = map.cityListCache.get(sortBy); // rendered since the last change?
+		if (cityList == null) {
+			cityList = map.cacheDocument().createElement("cityList"); // rendered in the map's own document
+			if (sortBy.equals(SORT_BY_NAME)) { // enumerate cities in order by name
+				for (City city : map.bsTreeByName.entryList()) { // get entries from the binary search tree
+					addCityToListElement(city, cityList);
+				}
+			}
+			else if (sortBy.equals(SORT_BY_COORDINATE)) { // enumerate cities in (x, y) order
+				for (City city : map.bsTreeByCoordinate.entryList()) { // get entries from the coordinate index
+					addCityToListElement(city, cityList);
+				}
+			}
+			else {
+				throw new UnsupportedOperationException("unknown sort method: `" + sortBy + "`");
+			}
+			map.cityListCache.put(sortBy, cityList);
+		}
 		Element output = resultsDoc.createElement("output"); // create output document
-		Element cityList = resultsDoc.createElement("cityList"); // create element containing cities
+		output.appendChild(resultsDoc.importNode(cityList, true)); // copy of the cached list
+
+		handleSuccess(cmd, output); // generate an appropriate success node
+	}
+
+	/**
+	 * Produce one page of the city list, as selected by the "offset" and "limit"
+	 * parameters. A missing offset starts at the first city, and a missing limit
+	 * runs to the last one.
+	 * 
+	 * @param cmd    The XML element for this command
+	 * @param map    The map the command works on
+	 * @param sortBy How to sort the list
+	 */
+	private void listCitiesPage(Element cmd, CityMap map, String sortBy) throws UnsupportedOperationException {
+		int offset = cmd.hasAttribute("offset") ? Math.max(0, Integer.parseInt(cmd.getAttribute("offset"))) : 0;
+		int limit = cmd.hasAttribute("limit") ? Math.max(0, Integer.parseInt(cmd.getAttribute("limit")))
+				: Integer.MAX_VALUE;
+
+		BinarySearchTree<City> index;
+		if (sortBy.equals(SORT_BY_NAME)) {
+			index = map.bsTreeByName;
+		} else if (sortBy.equals(SORT_BY_COORDINATE)) {
+			index = map.bsTreeByCoordinate;
+		} else {
+			throw new UnsupportedOperationException("unknown sort method: `" + sortBy + "`");
+		}
+
+		Element output = resultsDoc.createElement("output");
+		Element cityList = resultsDoc.createElement("cityList");
+		output.appendChild(cityList);
+		for (City city : index.entryList(offset, limit)) {
+			addCityToListElement(city, cityList);
+		}
+
+		handleSuccess(cmd, output);
+	}
+
+	/**
+	 * Lists the cities whose names start with the "prefix" parameter, or else lie
+	 * between the "from" and "to" parameters (inclusive, and either may be
+	 * omitted), in order by name. The optional "limit" parameter caps the length
+	 * of the list. The cities are read from the name tree, visiting only the
+	 * nodes on the paths to the bounds and those listed. If there are no such
+	 * cities, a "noCitiesToList" error results.
+	 * 
+	 * @param cmd The XML element for this command
+	 * @param map The map the command works on
+	 */
+	private void citiesByName(Element cmd, CityMap map) {
+		String from;
+		String to;
+		if (cmd.hasAttribute("prefix")) {
+			from = cmd.getAttribute("prefix");
+			to = from + NAME_MAX;
+		} else {
+			from = cmd.getAttribute("from"); // empty (before every name) if absent
+			to = cmd.hasAttribute("to") ? cmd.getAttribute("to") : String.valueOf(NAME_MAX);
+		}
+		int limit = cmd.hasAttribute("limit") ? Math.max(0, Integer.parseInt(cmd.getAttribute("limit")))
+				: Integer.MAX_VALUE;
+
+		List<City> cities = map.bsTreeByName.rangeList(new City(from), new City(to), limit);
+		if (cities.isEmpty()) {
+			handleError("noCitiesToList", cmd);
+			return;
+		}
+
+		Element output = resultsDoc.createElement("output");
+		Element cityList = resultsDoc.createElement("cityList");
 		output.appendChild(cityList);
-		if (sortBy.equals(SORT_BY_NAME)) { // enumerate cities in order by name
-			for (City city : bsTreeByName.entryList()) { // get entries from the binary search tree
-				addCityToListElement(city, cityList);
+		for (City city : cities) {
+			addCityToListElement(city, cityList);
+		}
+		handleSuccess(cmd, output);
+	}
+
+	/**
+	 * Applies the createCity and deleteCity commands inside a batch element
+	 * atomically: if one fails, those before it are undone, and the map is left
+	 * with the cities it had. The error of the failing command is reported for the
+	 * batch, with a "failedCommand" element giving its name and position (from 0).
+	 * A command of another kind, or one naming another map, fails with an
+	 * "invalidParameters" error. On success, the output lists the deleted cities.
+	 * 
+	 * The spatial index is not rebalanced during the batch, but once at its end,
+	 * so subtrees that many of its updates touch are rebuilt only once.
+	 * 
+	 * @param cmd The XML element for this command
+	 * @param map The map the command works on
+	 */
+	private void batch(Element cmd, CityMap map) {
+		ArrayList<Element> steps = new ArrayList<Element>();
+		NodeList nl = cmd.getChildNodes();
+		for (int i = 0; i < nl.getLength(); i++) {
+			if (nl.item(i).getNodeType() == Node.ELEMENT_NODE) {
+				steps.add((Element) nl.item(i));
 			}
 		}
-		else {
-			throw new UnsupportedOperationException("unknown sort method: `" + sortBy + "`");
+
+		ArrayList<City> deleted = new ArrayList<City>(); // cities deleted by the batch, in order
+		String error = null;
+		int done = 0; // number of steps applied
+		map.spatialIndex.beginBatch();
+		try {
+			while (done < steps.size() && (error = batchStep(steps.get(done), cmd, map, deleted)) == null) {
+				done++;
+			}
+			if (error != null) { // undo the steps applied, last first
+				for (int i = done - 1; i >= 0; i--) {
+					Element step = steps.get(i);
+					if (step.getNodeName().equals(CREATE_CITY)) {
+						deleteCity(map.bsTreeByName.find(new City(step.getAttribute("name"))), map);
+					} else {
+						insertCity(deleted.remove(deleted.size() - 1), map);
+					}
+				}
+			}
+		} finally {
+			map.spatialIndex.endBatch();
 		}
 
-		handleSuccess(cmd, output); // generate an appropriate success node
+		if (error != null) {
+			Element outErr = handleError(error, cmd);
+			Element failed = resultsDoc.createElement("failedCommand");
+			failed.setAttribute("name", steps.get(done).getNodeName());
+			failed.setAttribute("index", Integer.toString(done));
+			outErr.appendChild(failed);
+			return;
+		}
+		Element output = resultsDoc.createElement("output");
+		for (City city : deleted) {
+			addDeletedCity(city, output);
+		}
+		handleSuccess(cmd, output);
+	}
+
+	/**
+	 * Apply one command of a batch.
+	 * 
+	 * @param step    The command
+	 * @param batch   The batch element
+	 * @param map     The map the batch works on
+	 * @param deleted The list to which a deleted city is added
+	 * @return The type of the error, or null if the command succeeded
+	 */
+	private String batchStep(Element step, Element batch, CityMap map, List<City> deleted) {
+		String mapName = batch.hasAttribute("map") ? batch.getAttribute("map") : DEFAULT_MAP;
+		if ((step.hasAttribute("map") && !step.getAttribute("map").equals(mapName))
+				|| (checkParams && !hasValidParams(step))) {
+			return "invalidParameters";
+		}
+		switch (step.getNodeName()) {
+		case CREATE_CITY:
+			return addCity(step, map);
+		case DELETE_CITY:
+			City city = removeCity(step, map);
+			if (city == null) {
+				return "cityDoesNotExist";
+			}
+			deleted.add(city);
+			return null;
+		default:
+			return "invalidParameters";
+		}
 	}
 
 	/**
 	 * Removes all cities from the dictionaries. This command always succeeds.
 	 * 
 	 * @param cmd The XML element for this command
+	 * @param map The map the command works on
 	 */
-	private void clearAll(Element cmd) {
-		sgTreeByCoordinate.clear();
-		bsTreeByName.clear();
+	private void clearAll(Element cmd, CityMap map) {
+		map.clear();
 		handleSuccess(cmd, resultsDoc.createElement("output")); // output is empty
 	}
 
+	/**
+	 * Reads the optional "maxDepth" parameter of the print commands.
+	 * 
+	 * @param cmd The XML element for this command
+	 * @return The number of levels to print (unlimited if absent)
+	 */
+	private int maxDepthFromCmd(Element cmd) {
+		return cmd.hasAttribute("maxDepth") ? Math.max(0, Integer.parseInt(cmd.getAttribute("maxDepth")))
+				: Integer.MAX_VALUE;
+	}
+
 	/**
 	 * Prints the binary search tree to the results document. If the tree is empty,
-	 * a "mapIsEmpty" error results.
+	 * a "mapIsEmpty" error results. The optional "maxDepth" parameter limits the
+	 * number of levels printed, and summary="true" prints per-level statistics
+	 * instead of the nodes.
 	 * 
 	 * @param cmd The XML element for this command
+	 * @param map The map the command works on
 	 */
-	private void printBSTree(Element cmd) {
+	private void printBSTree(Element cmd, CityMap map) {
 		// Handle empty-tree error
-		if (bsTreeByName.size() == 0) {
+		if (map.bsTreeByName.size() == 0) {
 			handleError("mapIsEmpty", cmd);
 			return;
 		}
 		// Construct output
 		Element output = resultsDoc.createElement("output");
-		bsTreeByName.print(output);
+		if (Boolean.parseBoolean(cmd.getAttribute("summary"))) {
+			map.bsTreeByName.printSummary(output, maxDepthFromCmd(cmd));
+		} else {
+			map.bsTreeByName.print(output, maxDepthFromCmd(cmd));
+		}
 
 		handleSuccess(cmd, output);
 	}
 
-	private void printKDTree(Element cmd) {
+	/**
+	 * Prints the map's spatial index (the kd-tree, or whichever index the map
+	 * uses) to the results document. If the tree is empty, a
+	 * "mapIsEmpty" error results. The optional parameters are as for
+	 * printBinarySearchTree.
+	 * 
+	 * @param cmd The XML element for this command
+	 * @param map The map the command works on
+	 */
+	private void printKDTree(Element cmd, CityMap map) {
 		// Handle empty-tree error
-		if (sgTreeByCoordinate.size() == 0) {
+		if (map.spatialIndex.size() == 0) {
 			handleError("mapIsEmpty", cmd);
 			return;
 		}
 		// Construct output
 		Element output = resultsDoc.createElement("output");
-		sgTreeByCoordinate.print(output);
+		if (Boolean.parseBoolean(cmd.getAttribute("summary"))) {
+			map.spatialIndex.printSummary(output, maxDepthFromCmd(cmd));
+		} else {
+			map.spatialIndex.print(output, maxDepthFromCmd(cmd));
+		}
 
 		handleSuccess(cmd, output);
 	}
 
-	private void nearestN(Element cmd) throws Exception {
+	/**
+	 * Prints the map's run-time statistics: its number of cities, the rebuild debt
+	 * of its spatial index (the work left in background rebuilds), and the hit and
+	 * miss counts of its nearestNeighbor cache. This command always succeeds.
+	 * 
+	 * @param cmd The XML element for this command
+	 * @param map The map the command works on
+	 */
+	private void printStats(Element cmd, CityMap map) {
+		Element output = resultsDoc.createElement("output");
+		Element stats = resultsDoc.createElement("stats");
+		output.appendChild(stats);
+		stats.setAttribute("size", Integer.toString(map.spatialIndex.size()));
+		stats.setAttribute("rebuildDebt", Integer.toString(map.spatialIndex.rebuildDebt()));
+		stats.setAttribute("cacheHits", Long.toString(map.nearCache.getHits()));
+		stats.setAttribute("cacheMisses", Long.toString(map.nearCache.getMisses()));
+		handleSuccess(cmd, output);
+	}
+
+	/**
+	 * Reads the optional "color" parameter of the query commands.
+	 * 
+	 * @param cmd The XML element for this command
+	 * @return The color's code, ANY_COLOR if there is no parameter, or
+	 *         NO_SUCH_COLOR if no city has ever had the color
+	 */
+	private int colorFromCmd(Element cmd) {
+		if (!cmd.hasAttribute("color")) {
+			return SymbolTable.ANY_COLOR;
+		}
+		int code = SymbolTable.findColor(cmd.getAttribute("color"));
+		return code < 0 ? NO_SUCH_COLOR : code;
+	}
+
+	/**
+	 * Finds the city nearest to the query point. With the optional "epsilon"
+	 * parameter, any city within (1 + epsilon) times the nearest distance may be
+	 * returned, and the output reports this guaranteed factor. A negative epsilon
+	 * is an "invalidParameters" error. With the optional "color" parameter, only
+	 * cities of that color are considered, and a "noCitiesOfColor" error results
+	 * if there are none. Only exact results for all colors are cached.
+	 * 
+	 * @param cmd The XML element for this command
+	 * @param map The map the command works on
+	 */
+	private void nearestN(Element cmd, CityMap map) throws Exception {
 		int x = Integer.parseInt(cmd.getAttribute("x")); 
 		int y = Integer.parseInt(cmd.getAttribute("y")); 
+		float epsilon = cmd.hasAttribute("epsilon") ? Float.parseFloat(cmd.getAttribute("epsilon")) : 0;
+		int color = colorFromCmd(cmd);
 
-		if (x > mapWidth || y > mapHeight) {
+		if (!isEpsilon(cmd)) {
+			handleError("invalidParameters", cmd);
+		}
+
+		else if (x > map.mapWidth || y > map.mapHeight) {
 			handleError("queryOutOfBounds", cmd);
 		}
 
-		else if (sgTreeByCoordinate.size() == 0) {
+		else if (map.spatialIndex.size() == 0) {
 			handleError("mapIsEmpty", cmd);
 		}
+		else if (color == NO_SUCH_COLOR) {
+			handleError("noCitiesOfColor", cmd);
+		}
 		else { 
-			City c = new City(x, y, "", "", 0);
-			City res = (City) sgTreeByCoordinate.nearNS(c);
+			map.balancePolicy.recordQuery();
+			City res = null;
+			if (color == SymbolTable.ANY_COLOR) {
+				res = map.nearCache.get(x, y); // an exact result also satisfies any epsilon
+			}
+			if (res == null) {
+				res = map.spatialIndex.nearNS(new City(x, y), epsilon, color);
+				if (res == null) {
+					handleError("noCitiesOfColor", cmd);
+					return;
+				}
+				if (epsilon == 0 && color == SymbolTable.ANY_COLOR) {
+					map.nearCache.put(x, y, res);
+				}
+			}
 	
 			Element output = resultsDoc.createElement("output"); 
 	
@@ -351,41 +1004,242 @@ public class CommandHandler {
 			resN.setAttribute("color", res.getColor());
 			resN.setAttribute("name", res.getName());
 			resN.setAttribute("radius", Integer.toString((int) res.getRadius()));
+			if (cmd.hasAttribute("epsilon")) {
+				resN.setAttribute("factor", String.format(Locale.US, "%.3f", 1 + epsilon));
+			}
 			output.appendChild(resN);
 			handleSuccess(cmd, output);
 		}
 	}
 
+	/**
+	 * Lists the cities whose circle of influence (the circle of the city's radius
+	 * about the city) contains the query point, in order by name. With the
+	 * optional "color" parameter, only cities of that color are listed. If there
+	 * are no such cities, a "noCitiesCovering" error results.
+	 * 
+	 * @param cmd The XML element for this command
+	 * @param map The map the command works on
+	 */
+	private void citiesCovering(Element cmd, CityMap map) {
+		int x = Integer.parseInt(cmd.getAttribute("x"));
+		int y = Integer.parseInt(cmd.getAttribute("y"));
+		int color = colorFromCmd(cmd);
+
+		map.balancePolicy.recordQuery();
+		List<City> cities = (color == NO_SUCH_COLOR) ? Collections.<City>emptyList()
+				: map.spatialIndex.covering(new City(x, y), color);
+		if (cities.isEmpty()) {
+			handleError("noCitiesCovering", cmd);
+			return;
+		}
+		Collections.sort(cities, map.nameOrder);
+
+		Element output = resultsDoc.createElement("output");
+		Element cityList = resultsDoc.createElement("cityList");
+		output.appendChild(cityList);
+		for (City city : cities) {
+			addCityToListElement(city, cityList);
+		}
+		handleSuccess(cmd, output);
+	}
+
+	/**
+	 * Deletes every city in a region: the circle of the given "radius" about (x,
+	 * y), or else the rectangle with lower-left corner (x, y) and the given "width"
+	 * and "height". The cities are removed from the spatial index in one pass,
+	 * which rebalances at most once, and then from the binary search trees. The
+	 * deleted cities are listed in order by name. If the region holds no cities, a
+	 * "noCitiesInRange" error results.
+	 * 
+	 * @param cmd The XML element for this command
+	 * @param map The map the command works on
+	 */
+	private void deleteCitiesInRange(Element cmd, CityMap map) {
+		float x = Float.parseFloat(cmd.getAttribute("x"));
+		float y = Float.parseFloat(cmd.getAttribute("y"));
+		Region region;
+		if (cmd.hasAttribute("radius")) {
+			region = Region.circle(x, y, Float.parseFloat(cmd.getAttribute("radius")));
+		} else {
+			region = Region.rectangle(x, y, Float.parseFloat(cmd.getAttribute("width")),
+					Float.parseFloat(cmd.getAttribute("height")));
+		}
+
+		List<City> cities = map.spatialIndex.deleteInRange(region);
+		if (cities.isEmpty()) {
+			handleError("noCitiesInRange", cmd);
+			return;
+		}
+		map.balancePolicy.recordWrite();
+		map.nearCache.invalidate();
+		map.cityListCache.clear();
+		for (City city : cities) {
+			try {
+				map.bsTreeByName.delete(city);
+				map.bsTreeByCoordinate.delete(city);
+			} catch (Exception e) {
+				assert (false); // Huh? The trees hold the same cities
+			}
+		}
+
+		Collections.sort(cities, map.nameOrder);
+		Element output = resultsDoc.createElement("output");
+		Element cityList = resultsDoc.createElement("cityList");
+		output.appendChild(cityList);
+		for (City city : cities) {
+			addCityToListElement(city, cityList);
+		}
+		handleSuccess(cmd, output);
+	}
+
+	/**
+	 * Process the createMap command. This adds a new, empty map with the given name
+	 * and size, unless a map of that name already exists. The optional "index"
+	 * parameter names its spatial index ("kdtree", "quadtree", "grid" or
+	 * "intkdtree"), defaulting to the one chosen at startup. An "intkdtree" map
+	 * holds only cities with integer coordinates, and its size is limited to
+	 * IntKdTree.MAX_COORD. The optional "shards" parameter (at least 1) splits
+	 * the map's kd-tree into a grid of shards by shards tiles; a map of more than
+	 * one shard cannot name another index.
+	 * 
+	 * The optional "alpha" (default 2/3) and "deleteThreshold" (default 1/2)
+	 * parameters set the scapegoat balance ratio and the fraction of points below
+	 * which deletions rebuild the kd-tree. They may be fractions ("3/4") or
+	 * decimals ("0.75"). With balance="adaptive", alpha is relaxed in write-heavy
+	 * phases and tightened in query-heavy ones. With lazyDelete="true", deleted
+	 * cities are only marked in the kd-tree, which is compacted in one rebuild
+	 * once enough are dead (lazyDelete must be "true" or "false"). With
+	 * asyncRebuild="n", kd-tree rebuilds of at least n cities are done in the
+	 * background, while the old tree keeps serving commands. Both options apply
+	 * only to kd-tree maps. With ignoreCase="true", city names that differ only in case are
+	 * the same name, both in the name order and in the duplicate check (the
+	 * default is set at startup). Invalid parameters result in an
+	 * "invalidMapParameters" error.
+	 * 
+	 * @param cmd The XML element for this command
+	 */
+	private void createMap(Element cmd) {
+		String name = cmd.getAttribute("name");
+		CityMap map;
+		try {
+			float mapWidth = Float.parseFloat(cmd.getAttribute("spatialWidth"));
+			float mapHeight = Float.parseFloat(cmd.getAttribute("spatialHeight"));
+			int gridSize = cmd.hasAttribute("shards") ? Integer.parseInt(cmd.getAttribute("shards")) : 1;
+			String index = cmd.hasAttribute("index") ? cmd.getAttribute("index") : null;
+			int[] alpha = BalancePolicy.parseRatio(cmd.hasAttribute("alpha") ? cmd.getAttribute("alpha") : "2/3");
+			int[] delete = BalancePolicy.parseRatio(
+					cmd.hasAttribute("deleteThreshold") ? cmd.getAttribute("deleteThreshold") : "1/2");
+			boolean adaptive = cmd.getAttribute("balance").equals("adaptive");
+			BalancePolicy policy = new BalancePolicy(alpha[0], alpha[1], delete[0], delete[1], adaptive);
+			String lazy = cmd.hasAttribute("lazyDelete") ? cmd.getAttribute("lazyDelete") : "false";
+			if (!lazy.equals("true") && !lazy.equals("false")) {
+				throw new IllegalArgumentException("lazyDelete must be true or false: " + lazy);
+			}
+			boolean lazyDelete = lazy.equals("true");
+			int asyncRebuild = cmd.hasAttribute("asyncRebuild") ? Integer.parseInt(cmd.getAttribute("asyncRebuild"))
+					: 0;
+			boolean ignoreCase = cmd.hasAttribute("ignoreCase") ? Boolean.parseBoolean(cmd.getAttribute("ignoreCase"))
+					: CityMap.getDefaultIgnoreCase();
+			map = new CityMap(mapWidth, mapHeight, index, gridSize, policy, lazyDelete, asyncRebuild, ignoreCase);
+		} catch (IllegalArgumentException e) {
+			handleError("invalidMapParameters", cmd);
+			return;
+		}
+		if (maps.putIfAbsent(name, map) != null) {
+			handleError("duplicateMapName", cmd);
+			return;
+		}
+		handleSuccess(cmd, resultsDoc.createElement("output")); // output is trivial
+	}
+
 	/**
 	 * Process one command. This invokes the appropriate function for processing a
 	 * command. Throws an exception if the command in not valid (which should never
-	 * happen).
+	 * happen). Commands work on the map named by their "map" parameter (or the
+	 * default map), and hold that map's lock while they run: shared by createCity
+	 * and deleteCity on a sharded map, and otherwise exclusively.
 	 * 
 	 * @param cmd The command to process
 	 * @throws Exception
 	 */
 	public void handleCommand(Element cmd) throws Exception {
+		if (cmd.getNodeName().equals(CREATE_MAP)) {
+			createMap(cmd);
+			return;
+		}
+		if (checkParams && !isKnownCommand(cmd)) {
+			handleError("invalidParameters", cmd); // unknown command (the schema would reject it)
+			return;
+		}
+		paramsListFromCmd(cmd); // reject unknown commands
+		if (checkParams && !hasValidParams(cmd)) {
+			handleError("invalidParameters", cmd);
+			return;
+		}
+		CityMap map = maps.get(cmd.hasAttribute("map") ? cmd.getAttribute("map") : DEFAULT_MAP);
+		if (map == null) {
+			handleError("mapDoesNotExist", cmd);
+			return;
+		}
+		String name = cmd.getNodeName();
+		Lock lock = map.hasShardedWrites() && (name.equals(CREATE_CITY) || name.equals(DELETE_CITY))
+				? map.lock.readLock()
+				: map.lock.writeLock();
+		lock.lock();
+		try {
+			map.touch();
+			dispatchCommand(cmd, map);
+		} finally {
+			map.touch();
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Invoke the function for processing a command on a given map.
+	 * 
+	 * @param cmd The command to process
+	 * @param map The map the command works on
+	 * @throws Exception
+	 */
+	private void dispatchCommand(Element cmd, CityMap map) throws Exception {
 		switch (cmd.getNodeName()) {
 		case CREATE_CITY:
-			createCity(cmd);
+			createCity(cmd, map);
 			break;
 		case DELETE_CITY:
-			deleteCity(cmd);
+			deleteCity(cmd, map);
 			break;
 		case LIST_CITIES:
-			listCities(cmd);
+			listCities(cmd, map);
 			break;
 		case CLEAR_ALL:
-			clearAll(cmd);
+			clearAll(cmd, map);
 			break;
 		case PRINT_KDTREE:
-			printKDTree(cmd);
+			printKDTree(cmd, map);
 			break;
 		case PRINT_BSTREE:
-			printBSTree(cmd);
+			printBSTree(cmd, map);
 			break;
 		case NEAR:
-			nearestN(cmd);
+			nearestN(cmd, map);
+			break;
+		case COVERING:
+			citiesCovering(cmd, map);
+			break;
+		case DELETE_RANGE:
+			deleteCitiesInRange(cmd, map);
+			break;
+		case PRINT_STATS:
+			printStats(cmd, map);
+			break;
+		case CITIES_BY_NAME:
+			citiesByName(cmd, map);
+			break;
+		case BATCH:
+			batch(cmd, map);
 			break;
 		default:
 			throw new UnsupportedOperationException("unknown command: `" + cmd.getNodeName() + "`");
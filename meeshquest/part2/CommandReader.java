@@ -0,0 +1,15 @@
+package cmsc420.meeshquest.part2;
+
+import java.io.IOException;
+
+import org.w3c.dom.Element;
+
+/**
+ * A source of commands that are read one at a time, rather than parsed into a
+ * whole document first. The elements returned may be reused by the reader, so
+ * each is only valid until the next call to next.
+ */
+public interface CommandReader {
+	public Element getRoot(); // root element, with the attributes of the whole input
+	public Element next() throws IOException; // next command (or null at the end)
+}
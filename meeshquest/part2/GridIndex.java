@@ -0,0 +1,458 @@
+package cmsc420.meeshquest.part2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A uniform grid of square cells, each holding a bucket of the points that lie
+ * in it. Cells are found by hashing (floor(x / cell), floor(y / cell)), so
+ * insertions, deletions and lookups take constant expected time, and there is
+ * no rebalancing. This suits maps whose cities are spread fairly evenly.
+ *
+ * The cell size is chosen from the map's area and the number of points, so that
+ * a cell holds about LOAD points. When the number of points grows or shrinks by
+ * more than a factor of REHASH_FACTOR, the cell size is chosen anew and all the
+ * points are rehashed.
+ *
+ * Nearest-neighbor queries search rings of cells around the query point's cell,
+ * stopping once no unsearched cell can hold a closer point. Coverage queries
+ * search only the cells within the largest radius of the query point.
+ */
+public class GridIndex<P extends NamedPoint2D> implements SpatialIndex<P> {
+
+	// Target number of points per cell
+	private final static float LOAD = 2;
+	// Change in the number of points that triggers a rehash
+	private final static int REHASH_FACTOR = 4;
+	// Number of points the grid is sized for at least
+	private final static int MIN_SIZING = 16;
+
+	// -----------------------------------------------------------------
+	// Private member data
+	// -----------------------------------------------------------------
+
+	private final float mapArea; // area of the map
+	private float cell; // width (and height) of a cell
+	private int sizedFor; // number of points the cell size was chosen for
+	private HashMap<Long, ArrayList<P>> buckets; // non-empty cells, by key
+	private int nItems; // number of points
+	private boolean inBatch; // are rehashes deferred to the end of a batch?
+	private int colLo, colHi, rowLo, rowHi; // range of cells occupied so far
+	private float maxRadius; // largest radius added so far
+
+	// -----------------------------------------------------------------
+	// Grid utilities
+	// -----------------------------------------------------------------
+
+	/**
+	 * The column of the cell containing an x-coordinate.
+	 */
+	private int colOf(float x) {
+		return (int) Math.floor(x / cell);
+	}
+
+	/**
+	 * The row of the cell containing a y-coordinate.
+	 */
+	private int rowOf(float y) {
+		return (int) Math.floor(y / cell);
+	}
+
+	/**
+	 * The hash key of a cell.
+	 */
+	private static long key(int col, int row) {
+		return ((long) col << 32) | (row & 0xffffffffL);
+	}
+
+	/**
+	 * The bucket of the cell containing a point (or null if the cell is empty).
+	 */
+	private ArrayList<P> bucketOf(P pt) {
+		return buckets.get(key(colOf(pt.getX()), rowOf(pt.getY())));
+	}
+
+	/**
+	 * Do two points have the same coordinates?
+	 */
+	private boolean sameCoordinates(P p1, P p2) {
+		return p1.getX() == p2.getX() && p1.getY() == p2.getY();
+	}
+
+	/**
+	 * Add a point to the bucket of its cell, and widen the range of occupied
+	 * cells to include it.
+	 */
+	private void add(P pt) {
+		int col = colOf(pt.getX());
+		int row = rowOf(pt.getY());
+		ArrayList<P> bucket = buckets.get(key(col, row));
+		if (bucket == null) {
+			bucket = new ArrayList<P>((int) LOAD);
+			buckets.put(key(col, row), bucket);
+		}
+		bucket.add(pt);
+		if (nItems == 0) {
+			colLo = colHi = col;
+			rowLo = rowHi = row;
+			maxRadius = pt.getRadius();
+		} else {
+			maxRadius = Math.max(maxRadius, pt.getRadius());
+			colLo = Math.min(colLo, col);
+			colHi = Math.max(colHi, col);
+			rowLo = Math.min(rowLo, row);
+			rowHi = Math.max(rowHi, row);
+		}
+		nItems++;
+	}
+
+	/**
+	 * Choose the cell size for the given number of points, and rehash all points
+	 * into cells of that size.
+	 *
+	 * @param n The number of points to size the grid for
+	 */
+	private void rehash(int n) {
+		List<P> list = (buckets == null) ? new ArrayList<P>() : entryList();
+		sizedFor = Math.max(n, MIN_SIZING);
+		cell = Math.max(1, (float) Math.sqrt(mapArea * LOAD / sizedFor));
+		buckets = new HashMap<Long, ArrayList<P>>();
+		nItems = 0;
+		for (P p : list) {
+			add(p);
+		}
+	}
+
+	/**
+	 * Search the cells of one ring around a cell for a point closer than best.
+	 *
+	 * @param qp    The query point
+	 * @param col   The column of the center cell
+	 * @param row   The row of the center cell
+	 * @param r     The ring (0 is the center cell itself)
+	 * @param best  The best point so far (or null)
+	 * @param color The color code of the points sought (or ANY_COLOR)
+	 * @return The best point after searching the ring
+	 */
+	private P searchRing(P qp, int col, int row, int r, P best, int color) {
+		for (int c = col - r; c <= col + r; c++) {
+			boolean edge = (c == col - r || c == col + r); // whole column is on the ring
+			for (int w = row - r; w <= row + r; w += (edge || r == 0) ? 1 : 2 * r) {
+				ArrayList<P> bucket = buckets.get(key(c, w));
+				if (bucket == null) {
+					continue;
+				}
+				for (P p : bucket) {
+					if (color >= 0 && p.getColorCode() != color) {
+						continue;
+					}
+					if (best == null || qp.dist(p.getPoint2D()) < qp.dist(best.getPoint2D())) {
+						best = p;
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	// -----------------------------------------------------------------
+	// Public members
+	// -----------------------------------------------------------------
+
+	/**
+	 * Creates an empty grid covering a map of the given size.
+	 *
+	 * @param mapWidth  Width of the map (x-extent)
+	 * @param mapHeight Height of the map (y-extent)
+	 */
+	public GridIndex(float mapWidth, float mapHeight) {
+		mapArea = Math.max(mapWidth, 1) * Math.max(mapHeight, 1);
+		rehash(0);
+	}
+
+	public int size() {
+		return nItems;
+	}
+
+	public boolean isEmpty() {
+		return nItems == 0;
+	}
+
+	public P find(P pt) {
+		ArrayList<P> bucket = bucketOf(pt);
+		if (bucket != null) {
+			for (P p : bucket) {
+				if (sameCoordinates(p, pt)) {
+					return p;
+				}
+			}
+		}
+		return null;
+	}
+
+	public void insert(P pt) throws Exception {
+		if (find(pt) != null) {
+			throw new Exception("duplicateCityCoordinates");
+		}
+		add(pt);
+		if (!inBatch && nItems > REHASH_FACTOR * sizedFor) {
+			rehash(nItems);
+		}
+	}
+
+	public void delete(P pt) throws Exception {
+		ArrayList<P> bucket = bucketOf(pt);
+		if (bucket != null) {
+			for (int i = 0; i < bucket.size(); i++) {
+				if (sameCoordinates(bucket.get(i), pt)) {
+					bucket.remove(i);
+					if (bucket.isEmpty()) {
+						buckets.remove(key(colOf(pt.getX()), rowOf(pt.getY())));
+					}
+					nItems--;
+					if (!inBatch && nItems * REHASH_FACTOR < sizedFor && sizedFor > MIN_SIZING) {
+						rehash(nItems);
+					}
+					return;
+				}
+			}
+		}
+		throw new Exception("cityDoesNotExist");
+	}
+
+	/**
+	 * Delete all points that lie in a region. Only the occupied cells meeting the
+	 * region's bounding box are searched, and the grid is rehashed at most once.
+	 *
+	 * @param region The region
+	 * @return The deleted points
+	 */
+	public List<P> deleteInRange(Region region) {
+		ArrayList<P> removed = new ArrayList<P>();
+		if (nItems == 0) {
+			return removed;
+		}
+		for (int c = Math.max(colOf(region.getXLo()), colLo); c <= Math.min(colOf(region.getXHi()), colHi); c++) {
+			for (int r = Math.max(rowOf(region.getYLo()), rowLo); r <= Math.min(rowOf(region.getYHi()), rowHi); r++) {
+				ArrayList<P> bucket = buckets.get(key(c, r));
+				if (bucket == null) {
+					continue;
+				}
+				for (int i = bucket.size() - 1; i >= 0; i--) {
+					if (region.contains(bucket.get(i))) {
+						removed.add(bucket.remove(i));
+					}
+				}
+				if (bucket.isEmpty()) {
+					buckets.remove(key(c, r));
+				}
+			}
+		}
+		nItems -= removed.size();
+		if (nItems * REHASH_FACTOR < sizedFor && sizedFor > MIN_SIZING) {
+			rehash(nItems);
+		}
+		return removed;
+	}
+
+	public void clear() {
+		buckets.clear();
+		nItems = 0;
+		rehash(0);
+	}
+
+	public void compact() {
+		// deletions are never lazy
+	}
+
+	public int rebuildDebt() {
+		return 0; // rehashing is done in place
+	}
+
+	public boolean needsCompaction() {
+		return false;
+	}
+
+	public void beginBatch() {
+		inBatch = true;
+	}
+
+	/**
+	 * End a batch of updates, and rehash once if the number of points has moved
+	 * too far from the one the grid is sized for.
+	 */
+	public void endBatch() {
+		inBatch = false;
+		if (nItems > REHASH_FACTOR * sizedFor || (nItems * REHASH_FACTOR < sizedFor && sizedFor > MIN_SIZING)) {
+			rehash(nItems);
+		}
+	}
+
+	public List<P> entryList() {
+		ArrayList<P> list = new ArrayList<P>(nItems);
+		for (ArrayList<P> bucket : buckets.values()) {
+			list.addAll(bucket);
+		}
+		return list;
+	}
+
+	/**
+	 * Find the nearest point to a query point. Rings of cells are searched outward
+	 * from the query point's cell. A cell in ring r is at least (r - 1) cell widths
+	 * from the query point, which bounds how far the search must go.
+	 *
+	 * @param queryPoint The query point
+	 * @return The nearest point, or null if the grid is empty
+	 */
+	public P nearNS(P queryPoint) throws Exception {
+		return nearNS(queryPoint, 0);
+	}
+
+	/**
+	 * Find an approximate nearest neighbor, within (1 + epsilon) of the nearest
+	 * distance. The ring search stops as soon as the next ring cannot improve on
+	 * the best point by more than this factor.
+	 *
+	 * @param queryPoint The query point
+	 * @param epsilon    The allowed relative error (at least 0)
+	 * @return The point found, or null if the grid is empty
+	 */
+	public P nearNS(P queryPoint, float epsilon) throws Exception {
+		return nearNS(queryPoint, epsilon, SymbolTable.ANY_COLOR);
+	}
+
+	/**
+	 * Find an approximate nearest neighbor among the points of one color.
+	 *
+	 * @param queryPoint The query point
+	 * @param epsilon    The allowed relative error (at least 0)
+	 * @param color      The color code (or ANY_COLOR)
+	 * @return The point found, or null if there is no point of the color
+	 */
+	public P nearNS(P queryPoint, float epsilon, int color) throws Exception {
+		if (nItems == 0) {
+			return null;
+		}
+		int col = colOf(queryPoint.getX());
+		int row = rowOf(queryPoint.getY());
+		// rings beyond this one hold no occupied cells
+		int maxRing = Math.max(Math.max(col - colLo, colHi - col), Math.max(row - rowLo, rowHi - row));
+		P best = null;
+		for (int r = 0; r <= maxRing; r++) {
+			if (best != null && (r - 1) * cell * (1 + epsilon) >= queryPoint.dist(best.getPoint2D())) {
+				break; // no closer point remains
+			}
+			best = searchRing(queryPoint, col, row, r, best, color);
+		}
+		return best;
+	}
+
+	/**
+	 * Find all points whose circle of influence contains a query point. Only the
+	 * occupied cells within the largest radius of the query point's cell are
+	 * searched.
+	 *
+	 * @param queryPoint The query point
+	 * @return The points covering the query point
+	 */
+	public List<P> covering(P queryPoint) {
+		return covering(queryPoint, SymbolTable.ANY_COLOR);
+	}
+
+	/**
+	 * Find the points of one color whose circle of influence contains a query
+	 * point.
+	 *
+	 * @param queryPoint The query point
+	 * @param color      The color code (or ANY_COLOR)
+	 * @return The points covering the query point
+	 */
+	public List<P> covering(P queryPoint, int color) {
+		ArrayList<P> list = new ArrayList<P>();
+		if (nItems == 0) {
+			return list;
+		}
+		int reach = (int) Math.ceil(maxRadius / cell);
+		int col = colOf(queryPoint.getX());
+		int row = rowOf(queryPoint.getY());
+		for (int c = Math.max(col - reach, colLo); c <= Math.min(col + reach, colHi); c++) {
+			for (int r = Math.max(row - reach, rowLo); r <= Math.min(row + reach, rowHi); r++) {
+				ArrayList<P> bucket = buckets.get(key(c, r));
+				if (bucket == null) {
+					continue;
+				}
+				for (P p : bucket) {
+					if ((color < 0 || p.getColorCode() == color) && queryPoint.dist(p.getPoint2D()) <= p.getRadius()) {
+						list.add(p);
+					}
+				}
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Print the grid, down to the given depth: the grid itself, then its
+	 * non-empty cells, then the points in each cell.
+	 *
+	 * @param element  the output XML element
+	 * @param maxDepth the number of levels to print
+	 */
+	public void print(Element element, int maxDepth) {
+		Document resultsDoc = element.getOwnerDocument(); // document receiving the output
+		Element out = resultsDoc.createElement("grid");
+		out.setAttribute("cellSize", String.format(Locale.US, "%.3f", cell));
+		out.setAttribute("size", Integer.toString(nItems));
+		element.appendChild(out);
+		if (maxDepth <= 0) {
+			return;
+		}
+		for (ArrayList<P> bucket : buckets.values()) {
+			P first = bucket.get(0);
+			Element c = resultsDoc.createElement("cell");
+			c.setAttribute("col", Integer.toString(colOf(first.getX())));
+			c.setAttribute("row", Integer.toString(rowOf(first.getY())));
+			c.setAttribute("size", Integer.toString(bucket.size()));
+			out.appendChild(c);
+			if (maxDepth > 1) {
+				for (P p : bucket) {
+					Element e = resultsDoc.createElement("point");
+					e.setAttribute("name", p.getName());
+					e.setAttribute("x", Integer.toString((int) p.getX()));
+					e.setAttribute("y", Integer.toString((int) p.getY()));
+					c.appendChild(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Print a summary of the grid's load: the number of points, the cell size, the
+	 * number of non-empty cells and the largest and mean bucket sizes.
+	 *
+	 * @param element  the output XML element
+	 * @param maxDepth unused, as the grid has a single level
+	 */
+	public void printSummary(Element element, int maxDepth) {
+		Document resultsDoc = element.getOwnerDocument(); // document receiving the output
+		Element out = resultsDoc.createElement("grid");
+		element.appendChild(out);
+		Element summary = resultsDoc.createElement("summary");
+		out.appendChild(summary);
+		int maxLoad = 0;
+		for (ArrayList<P> bucket : buckets.values()) {
+			maxLoad = Math.max(maxLoad, bucket.size());
+		}
+		summary.setAttribute("size", Integer.toString(nItems));
+		summary.setAttribute("cellSize", String.format(Locale.US, "%.3f", cell));
+		summary.setAttribute("cells", Integer.toString(buckets.size()));
+		summary.setAttribute("maxLoad", Integer.toString(maxLoad));
+		summary.setAttribute("meanLoad",
+				String.format(Locale.US, "%.3f", buckets.isEmpty() ? 0f : (float) nItems / buckets.size()));
+	}
+}
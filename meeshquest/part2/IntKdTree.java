@@ -0,0 +1,786 @@
+package cmsc420.meeshquest.part2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A kd-tree specialized for points with integer coordinates. It has the shape
+ * of SGTree (the same split rule and scapegoat rebalancing), but each node holds
+ * its coordinates as ints, read from the point once when it is inserted. Points
+ * are ordered by exact integer comparisons, and distances are compared through
+ * their squares, computed exactly as 64-bit integers, so no comparison is
+ * rounded. Rebuilds sort the points once by x and once by y, and split both
+ * orders at each level, instead of sorting again at every level.
+ *
+ * Coordinates of points must be integers of magnitude at most MAX_COORD, which
+ * is the range in which a float (the coordinate type of Point2D) holds every
+ * integer exactly. Query coordinates may be any int. A coordinate difference is
+ * then below 2^31.5, so its square is below 2^63 and the sum of two squares fits
+ * in 64 bits, when read as an unsigned long. Squared distances are therefore
+ * compared unsigned.
+ *
+ * Deletions unlink points at once, and rebuilds are done in place: the lazy and
+ * background modes of SGTree are not offered.
+ */
+public class IntKdTree<P extends NamedPoint2D> implements SpatialIndex<P> {
+
+	// Largest magnitude of a point coordinate (floats are exact integers up to here)
+	public final static int MAX_COORD = 1 << 24;
+
+	// Factor by which a batch may exceed the height bound (as in SGTree)
+	private final static int BATCH_SLACK = 2;
+
+	// Orders of the external nodes by (x, y) and by (y, x)
+	private final Comparator<ExternalNode> byX = (a, b) -> a.x != b.x ? Integer.compare(a.x, b.x)
+			: Integer.compare(a.y, b.y);
+	private final Comparator<ExternalNode> byY = (a, b) -> a.y != b.y ? Integer.compare(a.y, b.y)
+			: Integer.compare(a.x, b.x);
+
+	// -----------------------------------------------------------------
+	// Node processing - Used internally only
+	// -----------------------------------------------------------------
+
+	/**
+	 * A node of the tree, either internal or external.
+	 */
+	private abstract class Node {
+		final boolean isExternal; // is node external?
+
+		Node(boolean isExternal) {
+			this.isExternal = isExternal;
+		}
+
+		abstract ExternalNode find(int x, int y); // find the point at (x, y) in subtree
+
+		abstract Node insert(ExternalNode leaf); // insert a new external node into subtree
+
+		abstract Node delete(int x, int y) throws Exception; // delete the point at (x, y) from subtree
+
+		abstract Node rebalance(int x, int y); // find scapegoat on the path to (x, y) and rebuild
+
+		abstract void leaves(List<ExternalNode> list); // add external nodes of subtree, in order
+
+		abstract void print(Element element, int depth); // print subtree, up to depth levels
+
+		abstract ExternalNode nearest(int qx, int qy, ExternalNode best, int xLo, int yLo, int xHi, int yHi,
+				double factor2, int color); // search subtree, whose points lie in the box
+
+		abstract void covering(int qx, int qy, int xLo, int yLo, int xHi, int yHi, int color, List<P> list); // add points whose circles contain (qx, qy)
+
+		abstract Node deleteInRange(Region region, int xLo, int yLo, int xHi, int yHi, List<P> removed); // unlink points in region
+	}
+
+	/**
+	 * An internal node. The splitter is the largest point of the left subtree, in
+	 * the order of the splitting dimension (x then y, or y then x).
+	 */
+	private class InternalNode extends Node {
+		final int x, y; // coordinates of the splitter
+		final int dim; // splitting dimension (0 for x, 1 for y)
+		int size; // number of external descendants
+		int height; // max number of edges to an external descendant
+		long maxReach2; // largest squared reach of the external descendants (unsigned)
+		long colors; // colors of the external descendants (mask of SymbolTable.colorBit)
+		Node left; // children
+		Node right;
+
+		InternalNode(int x, int y, int dim, Node left, Node right) {
+			super(false);
+			this.x = x;
+			this.y = y;
+			this.dim = dim;
+			this.left = left;
+			this.right = right;
+			updateSizeAndHeight();
+		}
+
+		/**
+		 * Does a point belong to the left subtree?
+		 */
+		boolean isLeft(int px, int py) {
+			return dim == 0 ? (px < x || (px == x && py <= y)) : (py < y || (py == y && px <= x));
+		}
+
+		void updateSizeAndHeight() {
+			size = getSize(left) + getSize(right);
+			height = 1 + Math.max(getHeight(left), getHeight(right));
+			long l = getReach2(left);
+			long r = getReach2(right);
+			maxReach2 = Long.compareUnsigned(l, r) >= 0 ? l : r;
+			colors = getColors(left) | getColors(right);
+		}
+
+		ExternalNode find(int px, int py) {
+			return isLeft(px, py) ? left.find(px, py) : right.find(px, py);
+		}
+
+		Node insert(ExternalNode leaf) {
+			if (isLeft(leaf.x, leaf.y)) {
+				left = left.insert(leaf);
+			} else {
+				right = right.insert(leaf);
+			}
+			updateSizeAndHeight();
+			return this;
+		}
+
+		Node delete(int px, int py) throws Exception {
+			if (isLeft(px, py)) {
+				left = left.delete(px, py);
+				if (left == null) {
+					return right; // subtree gone, return sibling
+				}
+			} else {
+				right = right.delete(px, py);
+				if (right == null) {
+					return left;
+				}
+			}
+			updateSizeAndHeight();
+			return this;
+		}
+
+		Node rebalance(int px, int py) {
+			boolean toLeft = isLeft(px, py);
+			if (policy.isUnbalanced(size, getSize(toLeft ? left : right))) {
+				return rebuild(this); // this is the scapegoat
+			}
+			if (toLeft) {
+				left = left.rebalance(px, py);
+			} else {
+				right = right.rebalance(px, py);
+			}
+			updateSizeAndHeight();
+			return this;
+		}
+
+		void leaves(List<ExternalNode> list) {
+			left.leaves(list);
+			right.leaves(list);
+		}
+
+		void print(Element element, int depth) {
+			Document resultsDoc = element.getOwnerDocument(); // document receiving the output
+			if (depth == 0) { // truncate here
+				Element out = resultsDoc.createElement("truncated");
+				out.setAttribute("size", Integer.toString(size));
+				out.setAttribute("height", Integer.toString(height));
+				element.appendChild(out);
+				return;
+			}
+			Element out = resultsDoc.createElement("internal");
+			out.setAttribute("splitDim", Integer.toString(dim));
+			out.setAttribute("x", Integer.toString(x));
+			out.setAttribute("y", Integer.toString(y));
+			element.appendChild(out);
+
+			left.print(out, depth - 1); // recurse on children
+			right.print(out, depth - 1);
+		}
+
+		/**
+		 * Nearest-neighbor search, as in SGTree: the subtree is skipped if it has no
+		 * point of the color, or if its box is too far away for any of its points to
+		 * beat the best point by more than the factor. Children are searched left
+		 * then right.
+		 */
+		ExternalNode nearest(int qx, int qy, ExternalNode best, int xLo, int yLo, int xHi, int yHi, double factor2,
+				int color) {
+			if ((colors & SymbolTable.colorBit(color)) == 0) {
+				return best; // no point of the color here
+			}
+			if (best != null && !mayBeat(boxDist2(qx, qy, xLo, yLo, xHi, yHi), factor2, best.dist2(qx, qy))) {
+				return best; // nothing in this subtree is close enough to matter
+			}
+			if (dim == 0) {
+				best = left.nearest(qx, qy, best, xLo, yLo, x, yHi, factor2, color);
+				best = right.nearest(qx, qy, best, x, yLo, xHi, yHi, factor2, color);
+			} else {
+				best = left.nearest(qx, qy, best, xLo, yLo, xHi, y, factor2, color);
+				best = right.nearest(qx, qy, best, xLo, y, xHi, yHi, factor2, color);
+			}
+			return best;
+		}
+
+		void covering(int qx, int qy, int xLo, int yLo, int xHi, int yHi, int color, List<P> list) {
+			if ((colors & SymbolTable.colorBit(color)) == 0
+					|| Long.compareUnsigned(boxDist2(qx, qy, xLo, yLo, xHi, yHi), maxReach2) > 0) {
+				return; // no circle of the color in this subtree reaches the query point
+			}
+			if (dim == 0) {
+				left.covering(qx, qy, xLo, yLo, x, yHi, color, list);
+				right.covering(qx, qy, x, yLo, xHi, yHi, color, list);
+			} else {
+				left.covering(qx, qy, xLo, yLo, xHi, y, color, list);
+				right.covering(qx, qy, xLo, y, xHi, yHi, color, list);
+			}
+		}
+
+		Node deleteInRange(Region region, int xLo, int yLo, int xHi, int yHi, List<P> removed) {
+			if (!region.intersects(xLo, yLo, xHi, yHi)) {
+				return this; // nothing to remove
+			}
+			if (region.containsBox(xLo, yLo, xHi, yHi)) {
+				entryList(removed, this); // remove the whole subtree
+				return null;
+			}
+			if (dim == 0) {
+				left = left.deleteInRange(region, xLo, yLo, x, yHi, removed);
+				right = right.deleteInRange(region, x, yLo, xHi, yHi, removed);
+			} else {
+				left = left.deleteInRange(region, xLo, yLo, xHi, y, removed);
+				right = right.deleteInRange(region, xLo, y, xHi, yHi, removed);
+			}
+			if (left == null) {
+				return right; // subtree gone, return sibling
+			} else if (right == null) {
+				return left;
+			}
+			updateSizeAndHeight();
+			return this;
+		}
+	}
+
+	/**
+	 * An external node, holding a point and its integer coordinates.
+	 */
+	private class ExternalNode extends Node {
+		final P point; // the point
+		final int x, y; // its coordinates
+		final long reach2; // its squared reach (see reach2)
+
+		ExternalNode(P point) {
+			super(true);
+			this.point = point;
+			this.x = toCoord(point.getX());
+			this.y = toCoord(point.getY());
+			this.reach2 = reach2(point.getRadius());
+		}
+
+		/**
+		 * The squared distance from this point to another (unsigned).
+		 */
+		long dist2(int qx, int qy) {
+			long dx = (long) qx - x;
+			long dy = (long) qy - y;
+			return dx * dx + dy * dy;
+		}
+
+		ExternalNode find(int px, int py) {
+			return (px == x && py == y) ? this : null;
+		}
+
+		Node insert(ExternalNode leaf) {
+			ExternalNode[] nodes = newNodeArray(2);
+			nodes[0] = this;
+			nodes[1] = leaf;
+			return build(nodes);
+		}
+
+		Node delete(int px, int py) throws Exception {
+			if (px == x && py == y) {
+				return null;
+			}
+			throw new Exception("cityDoesNotExist");
+		}
+
+		Node rebalance(int px, int py) {
+			return this; // no scapegoat on the path
+		}
+
+		void leaves(List<ExternalNode> list) {
+			list.add(this);
+		}
+
+		void print(Element element, int depth) {
+			Document resultsDoc = element.getOwnerDocument(); // document receiving the output
+			Element out = resultsDoc.createElement("external");
+			out.setAttribute("name", point.getName());
+			out.setAttribute("x", Integer.toString(x));
+			out.setAttribute("y", Integer.toString(y));
+			element.appendChild(out);
+		}
+
+		ExternalNode nearest(int qx, int qy, ExternalNode best, int xLo, int yLo, int xHi, int yHi, double factor2,
+				int color) {
+			if (color >= 0 && point.getColorCode() != color) {
+				return best;
+			}
+			if (best == null || Long.compareUnsigned(dist2(qx, qy), best.dist2(qx, qy)) < 0) {
+				return this;
+			}
+			return best;
+		}
+
+		void covering(int qx, int qy, int xLo, int yLo, int xHi, int yHi, int color, List<P> list) {
+			if ((color < 0 || point.getColorCode() == color) && point.getRadius() >= 0
+					&& Long.compareUnsigned(dist2(qx, qy), reach2) <= 0) {
+				list.add(point);
+			}
+		}
+
+		Node deleteInRange(Region region, int xLo, int yLo, int xHi, int yHi, List<P> removed) {
+			if (!region.contains(x, y)) {
+				return this;
+			}
+			removed.add(point);
+			return null;
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Tree utilities
+	// -----------------------------------------------------------------
+
+	int getSize(Node p) {
+		return p.isExternal ? 1 : ((InternalNode) p).size;
+	}
+
+	int getHeight(Node p) {
+		return p.isExternal ? 0 : ((InternalNode) p).height;
+	}
+
+	long getReach2(Node p) {
+		return p.isExternal ? ((ExternalNode) p).reach2 : ((InternalNode) p).maxReach2;
+	}
+
+	long getColors(Node p) {
+		return p.isExternal ? SymbolTable.colorBit(((ExternalNode) p).point.getColorCode())
+				: ((InternalNode) p).colors;
+	}
+
+	/**
+	 * Add the points of a subtree to a list, in order.
+	 */
+	void entryList(List<P> list, Node p) {
+		ArrayList<ExternalNode> leaves = new ArrayList<ExternalNode>();
+		p.leaves(leaves);
+		for (ExternalNode q : leaves) {
+			list.add(q.point);
+		}
+	}
+
+	/**
+	 * Convert a point coordinate to an int.
+	 *
+	 * @throws IllegalArgumentException If the coordinate is not an integer of the
+	 *                                  allowed range
+	 */
+	static int toCoord(float v) {
+		if (!fits(v)) {
+			throw new IllegalArgumentException("integer kd-tree: coordinate out of range: " + v);
+		}
+		return (int) v;
+	}
+
+	/**
+	 * Can a value be the coordinate of a point: is it an integer of magnitude at
+	 * most MAX_COORD?
+	 */
+	static boolean fits(float v) {
+		return v == Math.rint(v) && Math.abs(v) <= MAX_COORD;
+	}
+
+	/**
+	 * Can a point with these coordinates be stored in the tree?
+	 *
+	 * @param x The x-coordinate
+	 * @param y The y-coordinate
+	 * @return True if both coordinates are integers of the allowed range
+	 */
+	public static boolean fits(float x, float y) {
+		return fits(x) && fits(y);
+	}
+
+	/**
+	 * Convert a query coordinate to an int. Queries outside the range of int are
+	 * moved to its ends, which lie beyond every point.
+	 */
+	static int toQuery(float v) {
+		return (int) v;
+	}
+
+	/**
+	 * The squared reach of a radius: the largest squared distance it covers. Since
+	 * squared distances between integer points are integers, a distance is at
+	 * most the radius exactly when its square is at most the floor of the squared
+	 * radius. The result is an unsigned long.
+	 */
+	static long reach2(float radius) {
+		double r2 = (double) radius * radius; // exact: a float has 24 bits of mantissa
+		if (radius < 0) {
+			return 0;
+		} else if (r2 >= 0x1p64) {
+			return -1L; // reaches everything
+		} else if (r2 >= 0x1p63) {
+			return (long) (r2 - 0x1p63) + Long.MIN_VALUE;
+		} else {
+			return (long) r2;
+		}
+	}
+
+	/**
+	 * The squared distance from a point to the nearest point of a box (unsigned).
+	 */
+	static long boxDist2(int qx, int qy, int xLo, int yLo, int xHi, int yHi) {
+		long dx = Math.max(0, Math.max((long) xLo - qx, (long) qx - xHi));
+		long dy = Math.max(0, Math.max((long) yLo - qy, (long) qy - yHi));
+		return dx * dx + dy * dy;
+	}
+
+	/**
+	 * Could a point at a squared distance of at least boxDist2 beat the best point
+	 * by more than the approximation factor? Without approximation, this is an
+	 * exact comparison.
+	 */
+	static boolean mayBeat(long boxDist2, double factor2, long bestDist2) {
+		if (factor2 == 1) {
+			return Long.compareUnsigned(boxDist2, bestDist2) < 0;
+		}
+		return unsignedToDouble(boxDist2) * factor2 < unsignedToDouble(bestDist2);
+	}
+
+	static double unsignedToDouble(long v) {
+		return v >= 0 ? v : ((v >>> 1) | (v & 1)) * 2.0;
+	}
+
+	/**
+	 * Rebuild a subtree into a balanced one, reusing its external nodes.
+	 *
+	 * @param p The root of the subtree
+	 * @return The root of the rebuilt subtree
+	 */
+	Node rebuild(Node p) {
+		if (p.isExternal) {
+			return p;
+		}
+		ArrayList<ExternalNode> list = new ArrayList<ExternalNode>(getSize(p));
+		p.leaves(list);
+		return build(list.toArray(newNodeArray(list.size())));
+	}
+
+	/**
+	 * Build a balanced tree of external nodes. The nodes are sorted once in each
+	 * order, and each split partitions the order not split on, keeping both
+	 * halves sorted.
+	 *
+	 * @param nodes The external nodes (in any order)
+	 * @return The root of the tree
+	 */
+	Node build(ExternalNode[] nodes) {
+		ExternalNode[] xs = nodes.clone();
+		Arrays.sort(xs, byX);
+		ExternalNode[] ys = nodes;
+		Arrays.sort(ys, byY);
+		return build(xs, ys, 0, nodes.length, newNodeArray(nodes.length));
+	}
+
+	/**
+	 * Build a balanced tree of the external nodes xs[lo, hi), which are ys[lo, hi)
+	 * in the other order. The splitting dimension is the one of larger spread,
+	 * and the left subtree gets the first half (rounded up) of that order, as in
+	 * SGTree.buildTree.
+	 */
+	Node build(ExternalNode[] xs, ExternalNode[] ys, int lo, int hi, ExternalNode[] scratch) {
+		int s = hi - lo;
+		if (s == 1) {
+			return xs[lo];
+		}
+		int dim = ((long) xs[hi - 1].x - xs[lo].x < (long) ys[hi - 1].y - ys[lo].y) ? 1 : 0;
+		int m = lo + s - s / 2;
+		ExternalNode[] use = (dim == 0) ? xs : ys;
+		ExternalNode[] other = (dim == 0) ? ys : xs;
+		ExternalNode splitter = use[m - 1];
+		Comparator<ExternalNode> order = (dim == 0) ? byX : byY;
+		int l = lo;
+		int r = m;
+		for (int i = lo; i < hi; i++) { // stable partition of the other order
+			if (order.compare(other[i], splitter) <= 0) {
+				scratch[l++] = other[i];
+			} else {
+				scratch[r++] = other[i];
+			}
+		}
+		System.arraycopy(scratch, lo, other, lo, s);
+		Node left = build(xs, ys, lo, m, scratch);
+		Node right = build(xs, ys, m, hi, scratch);
+		return new InternalNode(splitter.x, splitter.y, dim, left, right);
+	}
+
+	@SuppressWarnings("unchecked")
+	private ExternalNode[] newNodeArray(int n) {
+		return (ExternalNode[]) java.lang.reflect.Array.newInstance(ExternalNode.class, n);
+	}
+
+	/**
+	 * Rebuild the subtrees left out of balance by a batch of updates, as in
+	 * SGTree.restoreBalance.
+	 */
+	Node restoreBalance(Node p) {
+		if (p.isExternal || getHeight(p) <= policy.maxHeight(getSize(p))) {
+			return p; // balanced enough
+		}
+		InternalNode q = (InternalNode) p;
+		if (policy.isUnbalanced(q.size, Math.max(getSize(q.left), getSize(q.right)))) {
+			return rebuild(q); // this is a scapegoat
+		}
+		q.left = restoreBalance(q.left);
+		q.right = restoreBalance(q.right);
+		q.updateSizeAndHeight();
+		return q;
+	}
+
+	// -----------------------------------------------------------------
+	// Private member data
+	// -----------------------------------------------------------------
+
+	private final BalancePolicy policy; // balance ratio and delete threshold
+	private Node root; // root of the tree (or null)
+	private int nItems; // number of points
+	private int maxItems; // upper bound on the number of points since the last rebuild
+	private boolean inBatch; // are balance checks deferred to the end of a batch?
+
+	// -----------------------------------------------------------------
+	// Public members
+	// -----------------------------------------------------------------
+
+	/**
+	 * Creates an empty tree.
+	 *
+	 * @param policy The balance ratio and delete threshold of the tree
+	 */
+	public IntKdTree(BalancePolicy policy) {
+		this.policy = policy;
+		root = null;
+		maxItems = nItems = 0;
+	}
+
+	public int size() {
+		return nItems;
+	}
+
+	public boolean isEmpty() {
+		return nItems == 0;
+	}
+
+	/**
+	 * Find the point with the coordinates of pt.
+	 *
+	 * @param pt The point sought (only its coordinates are used)
+	 * @return The point, or null if there is none (or pt's coordinates are not
+	 *         those of any point the tree can hold)
+	 */
+	public P find(P pt) {
+		if (root == null || !fits(pt.getX(), pt.getY())) {
+			return null;
+		}
+		ExternalNode leaf = root.find((int) pt.getX(), (int) pt.getY());
+		return leaf == null ? null : leaf.point;
+	}
+
+	/**
+	 * Insert a point. The caller must make sure no point has its coordinates.
+	 *
+	 * @param pt The point
+	 * @throws IllegalArgumentException If its coordinates do not fit (see fits)
+	 */
+	public void insert(P pt) throws Exception {
+		ExternalNode leaf = new ExternalNode(pt);
+		root = (root == null) ? leaf : root.insert(leaf);
+		nItems++;
+		maxItems++;
+		int maxHeight = policy.maxHeight(maxItems);
+		if (getHeight(root) > (inBatch ? BATCH_SLACK * maxHeight : maxHeight)) { // out of balance
+			root = root.rebalance(leaf.x, leaf.y);
+		}
+	}
+
+	/**
+	 * Delete the point with the coordinates of pt.
+	 *
+	 * @param pt The point (only its coordinates are used)
+	 * @throws Exception If there is no such point
+	 */
+	public void delete(P pt) throws Exception {
+		if (root == null || !fits(pt.getX(), pt.getY())) {
+			throw new Exception("cityDoesNotExist");
+		}
+		root = root.delete((int) pt.getX(), (int) pt.getY());
+		nItems--;
+		if (root == null) { // last point deleted
+			maxItems = 0;
+		} else if (!inBatch && policy.needsRebuild(nItems, maxItems)) {
+			root = rebuild(root);
+			maxItems = nItems;
+		}
+	}
+
+	/**
+	 * Delete all points that lie in a region, in one pruned walk, and rebuild at
+	 * most once.
+	 *
+	 * @param region The region
+	 * @return The deleted points
+	 */
+	public List<P> deleteInRange(Region region) {
+		ArrayList<P> removed = new ArrayList<P>();
+		if (root != null) {
+			root = root.deleteInRange(region, -MAX_COORD, -MAX_COORD, MAX_COORD, MAX_COORD, removed);
+		}
+		nItems -= removed.size();
+		if (root == null) {
+			maxItems = nItems = 0;
+		} else if (policy.needsRebuild(nItems, maxItems)) {
+			root = rebuild(root);
+			maxItems = nItems;
+		}
+		return removed;
+	}
+
+	public void clear() {
+		root = null;
+		maxItems = nItems = 0;
+	}
+
+	public void compact() {
+		// deletions are never lazy
+	}
+
+	public int rebuildDebt() {
+		return 0; // rebuilds are done in place
+	}
+
+	public boolean needsCompaction() {
+		return false;
+	}
+
+	public void beginBatch() {
+		inBatch = true;
+	}
+
+	/**
+	 * End a batch of updates, and restore the balance of the tree in one pass (see
+	 * SGTree.endBatch).
+	 */
+	public void endBatch() {
+		inBatch = false;
+		if (root == null) {
+			maxItems = nItems = 0;
+		} else if (policy.needsRebuild(nItems, maxItems)) {
+			root = rebuild(root);
+			maxItems = nItems;
+		} else if (getHeight(root) > policy.maxHeight(maxItems)) {
+			root = restoreBalance(root);
+		}
+	}
+
+	public List<P> entryList() {
+		ArrayList<P> list = new ArrayList<P>(nItems);
+		if (root != null) {
+			entryList(list, root);
+		}
+		return list;
+	}
+
+	public P nearNS(P queryPoint) throws Exception {
+		return nearNS(queryPoint, 0);
+	}
+
+	public P nearNS(P queryPoint, float epsilon) throws Exception {
+		return nearNS(queryPoint, epsilon, SymbolTable.ANY_COLOR);
+	}
+
+	/**
+	 * Find an approximate nearest neighbor among the points of one color, as in
+	 * SGTree.nearNS, but comparing exact squared distances.
+	 *
+	 * @param queryPoint The query point
+	 * @param epsilon    The allowed relative error (at least 0)
+	 * @param color      The color code (or ANY_COLOR)
+	 * @return The point found, or null if there is no point of the color
+	 */
+	public P nearNS(P queryPoint, float epsilon, int color) throws Exception {
+		if (root == null) {
+			return null;
+		}
+		double factor = 1 + (double) epsilon;
+		ExternalNode best = root.nearest(toQuery(queryPoint.getX()), toQuery(queryPoint.getY()), null, -MAX_COORD,
+				-MAX_COORD, MAX_COORD, MAX_COORD, factor * factor, color);
+		return best == null ? null : best.point;
+	}
+
+	public List<P> covering(P queryPoint) {
+		return covering(queryPoint, SymbolTable.ANY_COLOR);
+	}
+
+	/**
+	 * Find the points of one color whose circle of influence contains a query
+	 * point. Subtrees whose largest reach cannot meet the query point are pruned.
+	 *
+	 * @param queryPoint The query point
+	 * @param color      The color code (or ANY_COLOR)
+	 * @return The points covering the query point, in tree order
+	 */
+	public List<P> covering(P queryPoint, int color) {
+		ArrayList<P> list = new ArrayList<P>();
+		if (root != null) {
+			root.covering(toQuery(queryPoint.getX()), toQuery(queryPoint.getY()), -MAX_COORD, -MAX_COORD, MAX_COORD,
+					MAX_COORD, color, list);
+		}
+		return list;
+	}
+
+	public void print(Element element, int maxDepth) {
+		Document resultsDoc = element.getOwnerDocument(); // document receiving the output
+		Element out = resultsDoc.createElement("KdTree");
+		element.appendChild(out);
+		if (root != null)
+			root.print(out, maxDepth);
+	}
+
+	/**
+	 * Print a summary of the tree's shape, as SGTree.printSummary does.
+	 *
+	 * @param element  the output XML element
+	 * @param maxDepth the number of levels to summarize
+	 */
+	public void printSummary(Element element, int maxDepth) {
+		Document resultsDoc = element.getOwnerDocument(); // document receiving the output
+		Element out = resultsDoc.createElement("KdTree");
+		element.appendChild(out);
+		Element summary = resultsDoc.createElement("summary");
+		out.appendChild(summary);
+		summary.setAttribute("size", Integer.toString(nItems));
+		summary.setAttribute("height", Integer.toString(root == null ? 0 : getHeight(root)));
+		ArrayList<Node> level = new ArrayList<Node>(); // nodes of the current level
+		if (root != null)
+			level.add(root);
+		for (int depth = 0; depth < maxDepth && !level.isEmpty(); depth++) {
+			ArrayList<Node> next = new ArrayList<Node>();
+			int nInternal = 0;
+			float maxBalance = 0;
+			for (Node p : level) {
+				if (!p.isExternal) {
+					InternalNode q = (InternalNode) p;
+					nInternal++;
+					maxBalance = Math.max(maxBalance, (float) Math.max(getSize(q.left), getSize(q.right)) / q.size);
+					next.add(q.left);
+					next.add(q.right);
+				}
+			}
+			Element lev = resultsDoc.createElement("level");
+			lev.setAttribute("depth", Integer.toString(depth));
+			lev.setAttribute("internal", Integer.toString(nInternal));
+			lev.setAttribute("external", Integer.toString(level.size() - nInternal));
+			lev.setAttribute("maxBalance", String.format(Locale.US, "%.3f", maxBalance));
+			summary.appendChild(lev);
+			level = next;
+		}
+	}
+}
@@ -0,0 +1,383 @@
+package cmsc420.meeshquest.part2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Comment;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import cmsc420.xml.XmlUtility;
+
+/**
+ * A compact, line-oriented form of a commands document. The first line holds
+ * the root element and each later line one command: the element name followed
+ * by its attributes as name=value pairs, separated by spaces. For example,
+ *
+ * <pre>
+ * commands spatialWidth=1024 spatialHeight=1024
+ * createCity name=Paris x=100 y=200 radius=10 color=red
+ * nearestNeighbor x=110 y=190
+ * </pre>
+ *
+ * Spaces, tabs and carriage returns at either end of a line are ignored. Lines
+ * whose first other character is '#' are comments, and blank lines are ignored
+ * (both readers use isSpace and trim, so they agree on this). In values,
+ * '%', '=', spaces and line breaks are written as '%' and two hex digits; in
+ * comments, only '%' and line breaks are. The conversion to and from XML is
+ * lossless, except for whitespace between elements and the order of
+ * attributes, which XML does not preserve anyway. Commands that contain other
+ * commands, such as batch, have no line form.
+ *
+ * Running this class converts a file to the other format:
+ * {@code LineFormat <input> <output>}.
+ */
+public class LineFormat {
+
+	// Marks a comment line
+	final static char COMMENT = '#';
+
+	/**
+	 * Private constructor. All class methods are static.
+	 */
+	private LineFormat() {
+	}
+
+	/**
+	 * Is a character whitespace at the end of a line?
+	 */
+	static boolean isSpace(int c) {
+		return c == ' ' || c == '\t' || c == '\r';
+	}
+
+	/**
+	 * Remove the whitespace (see isSpace) at both ends of a line.
+	 */
+	static String trim(String line) {
+		int start = 0;
+		int end = line.length();
+		while (start < end && isSpace(line.charAt(start))) {
+			start++;
+		}
+		while (end > start && isSpace(line.charAt(end - 1))) {
+			end--;
+		}
+		return line.substring(start, end);
+	}
+
+	/**
+	 * Reads the commands of a line-oriented document one at a time. Each command
+	 * is returned as an element of a scratch document, and the element for a
+	 * command name is reused for every line with that name, so a long input costs
+	 * no more DOM nodes than it has distinct commands. An element is only valid
+	 * until the next call to next.
+	 */
+	public static class Reader implements CommandReader {
+		private final BufferedReader in; // the lines
+		private final Document scratch; // owner of the command elements
+		private final HashMap<String, Element> elements; // reusable elements, by command name
+		private final Element root; // the root element
+		private int lineNumber; // number of the last line read
+
+		/**
+		 * Starts reading a document, and reads its root element.
+		 *
+		 * @param in The lines of the document
+		 * @throws IOException If the document has no root element
+		 * @throws ParserConfigurationException
+		 */
+		public Reader(BufferedReader in) throws IOException, ParserConfigurationException {
+			this.in = in;
+			scratch = XmlUtility.getDocumentBuilder().newDocument();
+			elements = new HashMap<String, Element>();
+			String line = nextLine();
+			if (line == null) {
+				throw new IOException("line format: no root element");
+			}
+			root = scratch.createElement(line.substring(0, nameEnd(line)));
+			setAttributes(root, line, lineNumber);
+		}
+
+		/**
+		 * The root element, with the attributes of the whole document.
+		 */
+		public Element getRoot() {
+			return root;
+		}
+
+		/**
+		 * Reads the next command.
+		 *
+		 * @return The command, or null at the end of the input
+		 * @throws IOException If the line is malformed
+		 */
+		public Element next() throws IOException {
+			String line = nextLine();
+			if (line == null) {
+				return null;
+			}
+			String name = line.substring(0, nameEnd(line));
+			Element cmd = elements.get(name);
+			if (cmd == null) {
+				cmd = scratch.createElement(name);
+				elements.put(name, cmd);
+			} else {
+				NamedNodeMap attributes = cmd.getAttributes(); // clear the last line's attributes
+				while (attributes.getLength() > 0) {
+					cmd.removeAttributeNode((Attr) attributes.item(0));
+				}
+			}
+			setAttributes(cmd, line, lineNumber);
+			return cmd;
+		}
+
+		/**
+		 * Read the next line that is not blank or a comment.
+		 */
+		private String nextLine() throws IOException {
+			String line;
+			do {
+				line = in.readLine();
+				lineNumber++;
+				line = (line == null) ? null : trim(line);
+			} while (line != null && (line.isEmpty() || line.charAt(0) == COMMENT));
+			return line;
+		}
+	}
+
+	/**
+	 * Returns the end of the element name at the start of a line.
+	 */
+	private static int nameEnd(String line) {
+		int end = line.indexOf(' ');
+		return (end < 0) ? line.length() : end;
+	}
+
+	/**
+	 * Set the attributes given by the name=value pairs after the element name.
+	 *
+	 * @param element    The element
+	 * @param line       The line of the element (without surrounding whitespace)
+	 * @param lineNumber The line's number, for error messages
+	 * @throws IOException If a pair is malformed
+	 */
+	private static void setAttributes(Element element, String line, int lineNumber) throws IOException {
+		int i = nameEnd(line);
+		while (i < line.length()) {
+			if (line.charAt(i) == ' ') {
+				i++;
+				continue;
+			}
+			int end = line.indexOf(' ', i);
+			end = (end < 0) ? line.length() : end;
+			int eq = line.indexOf('=', i);
+			if (eq < 0 || eq > end) {
+				throw new IOException("line format: malformed attribute at line " + lineNumber);
+			}
+			element.setAttribute(line.substring(i, eq), unescape(line.substring(eq + 1, end)));
+			i = end;
+		}
+	}
+
+	/**
+	 * Is the input in line format? Looks at the first character that is not
+	 * whitespace: an XML document starts with '<'. The stream is left where it
+	 * was.
+	 *
+	 * @param in The input, which must support mark and reset
+	 * @return True if the input is not XML
+	 * @throws IOException
+	 */
+	public static boolean isLineFormat(BufferedInputStream in) throws IOException {
+		in.mark(4096);
+		try {
+			int c;
+			do {
+				c = in.read();
+			} while (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == 0xEF || c == 0xBB || c == 0xBF);
+			return c != '<' && c != -1;
+		} finally {
+			in.reset();
+		}
+	}
+
+	/**
+	 * Convert a line-oriented document to XML.
+	 *
+	 * @param in The lines of the document
+	 * @return The XML document
+	 * @throws IOException If a line is malformed
+	 * @throws ParserConfigurationException
+	 */
+	public static Document toDocument(BufferedReader in) throws IOException, ParserConfigurationException {
+		Document doc = XmlUtility.getDocumentBuilder().newDocument();
+		Element root = null;
+		String line;
+		int lineNumber = 0;
+		while ((line = in.readLine()) != null) {
+			lineNumber++;
+			String trimmed = trim(line);
+			if (trimmed.isEmpty()) {
+				continue;
+			}
+			if (trimmed.charAt(0) == COMMENT) { // text after the '#', up to the end of the line
+				Comment comment = doc.createComment(unescape(line.substring(line.indexOf(COMMENT) + 1)));
+				if (root == null) {
+					doc.appendChild(comment);
+				} else {
+					root.appendChild(comment);
+				}
+				continue;
+			}
+			line = trimmed;
+			Element element = doc.createElement(line.substring(0, nameEnd(line)));
+			setAttributes(element, line, lineNumber);
+			if (root == null) {
+				root = element;
+				doc.appendChild(root);
+			} else {
+				root.appendChild(element);
+			}
+		}
+		if (root == null) {
+			throw new IOException("line format: no root element");
+		}
+		return doc;
+	}
+
+	/**
+	 * Convert an XML commands document to line format.
+	 *
+	 * @param doc The XML document
+	 * @param out Where the lines are written
+	 * @throws IOException If a command contains other elements
+	 */
+	public static void write(Document doc, Writer out) throws IOException {
+		NodeList top = doc.getChildNodes();
+		for (int i = 0; i < top.getLength(); i++) {
+			writeNode(top.item(i), out);
+		}
+		Element root = doc.getDocumentElement();
+		NodeList nl = root.getChildNodes();
+		for (int i = 0; i < nl.getLength(); i++) {
+			Node node = nl.item(i);
+			if (node.getNodeType() == Node.ELEMENT_NODE
+					&& ((Element) node).getElementsByTagName("*").getLength() > 0) {
+				throw new IOException("line format: " + node.getNodeName() + " contains elements");
+			}
+			writeNode(node, out);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Write an element (without its children) or a comment as one line. Other
+	 * nodes, such as whitespace, are skipped.
+	 */
+	private static void writeNode(Node node, Writer out) throws IOException {
+		if (node.getNodeType() == Node.COMMENT_NODE) {
+			out.write(COMMENT);
+			out.write(escape(node.getNodeValue(), false));
+			out.write('\n');
+		} else if (node.getNodeType() == Node.ELEMENT_NODE) {
+			out.write(node.getNodeName());
+			NamedNodeMap attributes = node.getAttributes();
+			for (int i = 0; i < attributes.getLength(); i++) {
+				Attr a = (Attr) attributes.item(i);
+				out.write(' ');
+				out.write(a.getName());
+				out.write('=');
+				out.write(escape(a.getValue(), true));
+			}
+			out.write('\n');
+		}
+	}
+
+	/**
+	 * Escape the characters that cannot appear literally in a value (or a
+	 * comment).
+	 */
+	private static String escape(String s, boolean isValue) {
+		StringBuilder sb = null;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			boolean special = c == '%' || c == '\n' || c == '\r'
+					|| (isValue && (c == ' ' || c == '\t' || c == '='));
+			if (special && sb == null) {
+				sb = new StringBuilder(s.substring(0, i));
+			}
+			if (special) {
+				sb.append(String.format("%%%02X", (int) c));
+			} else if (sb != null) {
+				sb.append(c);
+			}
+		}
+		return sb == null ? s : sb.toString();
+	}
+
+	/**
+	 * Undo escape.
+	 */
+	static String unescape(String s) throws IOException {
+		if (s.indexOf('%') < 0) {
+			return s;
+		}
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '%') {
+				if (i + 2 >= s.length()) {
+					throw new IOException("line format: bad escape in " + s);
+				}
+				try {
+					sb.append((char) Integer.parseInt(s.substring(i + 1, i + 3), 16));
+				} catch (NumberFormatException e) {
+					throw new IOException("line format: bad escape in " + s);
+				}
+				i += 2;
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Convert a file between XML and line format. The format of the input is
+	 * detected, and the output is in the other format.
+	 *
+	 * @param args The input and output file names
+	 */
+	public static void main(String[] args)
+			throws IOException, ParserConfigurationException, SAXException, TransformerException {
+		if (args.length != 2) {
+			System.err.println("usage: LineFormat <input> <output>");
+			return;
+		}
+		try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(args[0]));
+				FileOutputStream out = new FileOutputStream(args[1])) {
+			if (isLineFormat(in)) {
+				Document doc = toDocument(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+				XmlUtility.write(doc, out);
+			} else {
+				write(XmlUtility.parse(in), new OutputStreamWriter(out, StandardCharsets.UTF_8));
+			}
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package cmsc420.meeshquest.part2;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+
+import cmsc420.xml.XmlUtility;
+
+/**
+ * Reads a command file in line format (see LineFormat) by mapping it into
+ * memory and scanning the bytes in place. Files larger than the address window
+ * are mapped a window at a time, each starting at a line boundary. No String is
+ * made for a line or for the names of commands and attributes, which are
+ * matched against those seen before. Only the attribute values are decoded,
+ * since commands echo them in their output.
+ *
+ * Like LineFormat.Reader, the element for a command name is reused for every
+ * line with that name.
+ */
+public class MappedLineReader implements CommandReader {
+
+	// Largest part of the file mapped at once
+	private final static long WINDOW = 1L << 30;
+
+	private final FileChannel channel; // the file
+	private final long fileSize; // length of the file
+	private long windowStart; // file offset of the mapped window
+	private MappedByteBuffer buf; // the mapped window
+	private int pos; // next byte of the window to scan
+	private int lineNumber; // number of the last line read
+
+	private final Document scratch; // owner of the command elements
+	private final ArrayList<Element> elements; // reusable elements, one per command name
+	private final ArrayList<String> attrNames; // attribute names seen so far
+	private byte[] value = new byte[64]; // bytes of the value being decoded
+	private final Element root; // the root element
+
+	/**
+	 * Opens a command file and reads its root element.
+	 *
+	 * @param fileName The name of the file
+	 * @throws IOException If the file cannot be read, or has no root element
+	 * @throws ParserConfigurationException
+	 */
+	public MappedLineReader(String fileName) throws IOException, ParserConfigurationException {
+		channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		fileSize = channel.size();
+		map(0);
+		scratch = XmlUtility.getDocumentBuilder().newDocument();
+		elements = new ArrayList<Element>();
+		attrNames = new ArrayList<String>();
+		int end = nextLine();
+		if (end < 0) {
+			throw new IOException("line format: no root element");
+		}
+		root = scratch.createElement(decode(pos, nameEnd(end) - pos));
+		setAttributes(root, end);
+		pos = end;
+	}
+
+	public Element getRoot() {
+		return root;
+	}
+
+	public Element next() throws IOException {
+		int end = nextLine();
+		if (end < 0) {
+			channel.close();
+			return null;
+		}
+		int nameEnd = nameEnd(end);
+		Element cmd = null;
+		for (Element e : elements) {
+			if (matches(pos, nameEnd - pos, e.getTagName())) {
+				cmd = e;
+				break;
+			}
+		}
+		if (cmd == null) {
+			cmd = scratch.createElement(decode(pos, nameEnd - pos));
+			elements.add(cmd);
+		} else {
+			NamedNodeMap attributes = cmd.getAttributes(); // clear the last line's attributes
+			while (attributes.getLength() > 0) {
+				cmd.removeAttributeNode((Attr) attributes.item(0));
+			}
+		}
+		setAttributes(cmd, end);
+		pos = end;
+		return cmd;
+	}
+
+	/**
+	 * Map the window of the file starting at a given offset.
+	 */
+	private void map(long start) throws IOException {
+		windowStart = start;
+		buf = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, fileSize - start));
+		pos = 0;
+	}
+
+	/**
+	 * Advance to the next line that is not blank or a comment. On return, pos is
+	 * the line's first byte that is not whitespace.
+	 *
+	 * @return The end of the line, without trailing whitespace (or -1 at the end
+	 *         of the file)
+	 * @throws IOException If a line does not fit in a window
+	 */
+	private int nextLine() throws IOException {
+		while (true) {
+			int eol = pos;
+			while (eol < buf.limit() && buf.get(eol) != '\n') {
+				eol++;
+			}
+			if (eol == buf.limit() && windowStart + eol < fileSize) { // line continues past the window
+				if (pos == 0) {
+					throw new IOException("line format: line " + (lineNumber + 1) + " is too long");
+				}
+				map(windowStart + pos);
+				continue;
+			}
+			if (pos == buf.limit()) {
+				return -1; // end of file
+			}
+			lineNumber++;
+			int start = pos;
+			int end = eol;
+			pos = Math.min(eol + 1, buf.limit());
+			while (start < end && LineFormat.isSpace(buf.get(start))) {
+				start++;
+			}
+			while (end > start && LineFormat.isSpace(buf.get(end - 1))) {
+				end--;
+			}
+			if (start < end && buf.get(start) != LineFormat.COMMENT) {
+				pos = start;
+				return end;
+			}
+		}
+	}
+
+	/**
+	 * Set the attributes given by the name=value pairs after the element name.
+	 *
+	 * @param element The element
+	 * @param end     The end of the line
+	 */
+	private void setAttributes(Element element, int end) throws IOException {
+		int i = nameEnd(end);
+		while (i < end) {
+			if (buf.get(i) == ' ') {
+				i++;
+				continue;
+			}
+			int eq = i;
+			while (eq < end && buf.get(eq) != '=' && buf.get(eq) != ' ') {
+				eq++;
+			}
+			if (eq == end || buf.get(eq) != '=') {
+				throw new IOException("line format: malformed attribute at line " + lineNumber);
+			}
+			int valueEnd = eq + 1;
+			while (valueEnd < end && buf.get(valueEnd) != ' ') {
+				valueEnd++;
+			}
+			element.setAttribute(attrName(i, eq - i), decodeValue(eq + 1, valueEnd - eq - 1));
+			i = valueEnd;
+		}
+	}
+
+	/**
+	 * The end of the element name at the start of the current line.
+	 */
+	private int nameEnd(int end) {
+		int i = pos;
+		while (i < end && buf.get(i) != ' ') {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Returns the attribute name in the given bytes, reusing the String of an
+	 * earlier occurrence.
+	 */
+	private String attrName(int off, int len) {
+		for (String name : attrNames) {
+			if (matches(off, len, name)) {
+				return name;
+			}
+		}
+		String name = decode(off, len);
+		attrNames.add(name);
+		return name;
+	}
+
+	/**
+	 * Do the given bytes spell a string?
+	 */
+	private boolean matches(int off, int len, String s) {
+		if (s.length() != len) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (buf.get(off + i) != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Decode a name (UTF-8).
+	 */
+	private String decode(int off, int len) {
+		byte[] b = new byte[len];
+		buf.get(off, b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Decode a value. Plain ASCII values, the common case, are copied straight
+	 * into a String; others are decoded as UTF-8 and unescaped.
+	 */
+	private String decodeValue(int off, int len) throws IOException {
+		if (value.length < len) {
+			value = new byte[Math.max(len, 2 * value.length)];
+		}
+		boolean plain = true;
+		for (int i = 0; i < len; i++) {
+			byte b = buf.get(off + i);
+			value[i] = b;
+			plain &= (b >= 0 && b != '%');
+		}
+		if (plain) {
+			return new String(value, 0, len, StandardCharsets.ISO_8859_1);
+		}
+		return LineFormat.unescape(new String(value, 0, len, StandardCharsets.UTF_8));
+	}
+}
@@ -1,12 +1,25 @@
 package cmsc420.meeshquest.part2;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -32,13 +45,53 @@ public class MeeshQuest {
 	private static String outputFileName = "test/mytest-output-5.xml";
 // --------------------------------------------------------------------------------------------
 
+	// Compiled input schemas, by location, so that each is loaded only once
+	private static final ConcurrentHashMap<String, Schema> schemas = new ConcurrentHashMap<String, Schema>();
+	private static final SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+
 	public static void main(String[] args) throws Exception {
 
+		// optional arguments: -index <kdtree|quadtree|grid|intkdtree> chooses the spatial index,
+		// -server <port> runs as a long-lived server instead, and -fast skips schema
+		// validation of trusted input (the commands' parameters are checked instead).
+		// -input <file> reads the commands from a file (memory-mapped, if in line
+		// format), and -output <file> writes the results through a direct buffer of
+		// -outputBuffer <bytes>, instead of through System.in and System.out.
+		// -ignoreCase compares city names ignoring case in maps that do not say
+		int port = -1;
+		boolean validate = true;
+		String inputFile = null;
+		String outputFile = null;
+		int outputBuffer = ChannelOutputStream.DEFAULT_BUFFER_SIZE;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-fast")) {
+				validate = false;
+			} else if (args[i].equals("-input") && i + 1 < args.length) {
+				inputFile = args[++i];
+			} else if (args[i].equals("-output") && i + 1 < args.length) {
+				outputFile = args[++i];
+			} else if (args[i].equals("-outputBuffer") && i + 1 < args.length) {
+				outputBuffer = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-index") && i + 1 < args.length) {
+				CityMap.setDefaultIndex(args[++i]);
+			} else if (args[i].equals("-ignoreCase")) {
+				CityMap.setDefaultIgnoreCase(true);
+			} else if (args[i].equals("-server") && i + 1 < args.length) {
+				port = Integer.parseInt(args[++i]);
+			}
+		}
+		if (port >= 0) {
+			new MeeshQuestServer(port, validate).run();
+			return;
+		}
+
 		// configure to read from file rather than standard input/output
 		if (!USE_STD_IO) {
 			try {
-				System.setIn(new FileInputStream(inputFileName));
-				System.setOut(new PrintStream(outputFileName));
+				if (inputFile == null)
+					System.setIn(new FileInputStream(inputFileName));
+				if (outputFile == null)
+					System.setOut(new PrintStream(outputFileName));
 			} catch (FileNotFoundException e) {
 				e.printStackTrace();
 			}
@@ -55,8 +108,27 @@ public class MeeshQuest {
 		}
 
 		try {
-			// validate and parse XML input
-			Document input = XmlUtility.validateNoNamespace(System.in);
+			BufferedInputStream in = new BufferedInputStream(
+					inputFile == null ? System.in : new FileInputStream(inputFile));
+			if (LineFormat.isLineFormat(in)) { // commands one per line (never validated)
+				CommandReader reader;
+				if (inputFile == null) {
+					reader = new LineFormat.Reader(
+							new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+				} else {
+					in.close();
+					reader = new MappedLineReader(inputFile);
+				}
+				Element rootNode = reader.getRoot();
+				final float mapWidth = Float.parseFloat(rootNode.getAttribute("spatialWidth"));
+				final float mapHeight = Float.parseFloat(rootNode.getAttribute("spatialHeight"));
+				final CommandHandler commandHandler = new CommandHandler(resultsDoc, mapWidth, mapHeight);
+				commandHandler.setCheckParameters(true);
+				processCommands(reader, commandHandler);
+				return;
+			}
+			// parse (and validate) XML input
+			Document input = readCommands(in, validate);
 			// get input document root node
 			Element rootNode = input.getDocumentElement();
 			final float mapWidth = Float.parseFloat(rootNode.getAttribute("spatialWidth"));
@@ -64,27 +136,110 @@ public class MeeshQuest {
 
 			// set up command handler
 			final CommandHandler commandHandler = new CommandHandler(resultsDoc, mapWidth, mapHeight);
-
-			// get list of all nodes in document
-			final NodeList nl = rootNode.getChildNodes();
-			for (int i = 0; i < nl.getLength(); i++) {
-				// process only commands (ignore comments)
-				if (nl.item(i).getNodeType() == Document.ELEMENT_NODE) {
-					// get next command to process
-					Element commandNode = (Element) nl.item(i); // (ignore warning - just a skeleton)
-					commandHandler.handleCommand(commandNode);
-				}
-			}
+			commandHandler.setCheckParameters(!validate);
+			processCommands(rootNode, commandHandler);
 		} catch (SAXException | IOException | ParserConfigurationException e) {
 			Element fatalError = resultsDoc.createElement("fatalError");
-			resultsDoc.appendChild(fatalError);
+			if (resultsDoc.getDocumentElement() != null) { // results so far, then the error
+				resultsDoc.getDocumentElement().appendChild(fatalError);
+			} else {
+				resultsDoc.appendChild(fatalError);
+			}
 		} finally {
 			try {
 				// print the contents of the your results document
-				XmlUtility.print(resultsDoc);
-			} catch (TransformerException e) {
+				if (outputFile == null) {
+					XmlUtility.print(resultsDoc);
+				} else {
+					try (ChannelOutputStream out = new ChannelOutputStream(outputFile, outputBuffer)) {
+						XmlUtility.write(resultsDoc, out);
+					}
+				}
+			} catch (TransformerException | IOException e) {
 				e.printStackTrace();
 			}
 		}
 	}
+
+	/**
+	 * Parse a commands document. If it is to be validated, it is checked against
+	 * the schema named by its xsi:noNamespaceSchemaLocation attribute, as by
+	 * XmlUtility.validateNoNamespace, except that each schema is compiled only
+	 * once per process. Otherwise it is only parsed, and it is up to the command
+	 * handler to check the commands' parameters.
+	 * 
+	 * @param in       The input stream of the document
+	 * @param validate Whether to validate the document
+	 * @return The document
+	 * @throws SAXException If the document is not well formed, or not valid
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 */
+	static Document readCommands(InputStream in, boolean validate)
+			throws SAXException, IOException, ParserConfigurationException {
+		return readCommands(XmlUtility.getDocumentBuilder(), in, validate);
+	}
+
+	/**
+	 * Parse a commands document with a given parser, as readCommands(in,
+	 * validate) does with XmlUtility's shared one. Threads that each have their
+	 * own parser can read documents concurrently.
+	 * 
+	 * @param builder  The parser
+	 * @param in       The input stream of the document
+	 * @param validate Whether to validate the document
+	 * @return The document
+	 * @throws SAXException If the document is not well formed, or not valid
+	 * @throws IOException
+	 */
+	static Document readCommands(DocumentBuilder builder, InputStream in, boolean validate)
+			throws SAXException, IOException {
+		Document document = builder.parse(in);
+		if (validate) {
+			String location = document.getDocumentElement().getAttribute("xsi:noNamespaceSchemaLocation");
+			Schema schema = schemas.get(location);
+			if (schema == null) {
+				synchronized (schemaFactory) { // factories are not thread-safe
+					schema = location.startsWith("http://") ? schemaFactory.newSchema(new URL(location))
+							: schemaFactory.newSchema(new File(location));
+				}
+				schemas.putIfAbsent(location, schema);
+			}
+			schema.newValidator().validate(new DOMSource(document));
+		}
+		return document;
+	}
+
+	/**
+	 * Pass each command from a command reader to the command handler.
+	 * 
+	 * @param reader         The source of the commands
+	 * @param commandHandler The handler that processes the commands
+	 * @throws Exception
+	 */
+	static void processCommands(CommandReader reader, CommandHandler commandHandler) throws Exception {
+		for (Element cmd = reader.next(); cmd != null; cmd = reader.next()) {
+			commandHandler.handleCommand(cmd);
+		}
+	}
+
+	/**
+	 * Pass each command of an input document to the command handler.
+	 * 
+	 * @param rootNode       The root element of the input document
+	 * @param commandHandler The handler that processes the commands
+	 * @throws Exception
+	 */
+	static void processCommands(Element rootNode, CommandHandler commandHandler) throws Exception {
+		// get list of all nodes in document
+		final NodeList nl = rootNode.getChildNodes();
+		for (int i = 0; i < nl.getLength(); i++) {
+			// process only commands (ignore comments)
+			if (nl.item(i).getNodeType() == Document.ELEMENT_NODE) {
+				// get next command to process
+				Element commandNode = (Element) nl.item(i); // (ignore warning - just a skeleton)
+				commandHandler.handleCommand(commandNode);
+			}
+		}
+	}
 }
@@ -0,0 +1,183 @@
+package cmsc420.meeshquest.part2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+import cmsc420.xml.XmlUtility;
+
+/**
+ * Long-running server mode for MeeshQuest. The maps, and the cities in their
+ * trees, stay resident between command batches, so clients do not pay for JVM
+ * start-up and a cold map on every run.
+ *
+ * The server listens on a local (loopback) TCP port. A client connects, writes a
+ * complete commands document and shuts down its side of the connection. The
+ * server then writes back the results document and closes the connection. The
+ * dimensions of the default map are taken from the first batch; later batches
+ * work on the same maps.
+ *
+ * Each connection is served by its own thread, and input is read and parsed
+ * concurrently, with a parser per thread. Only writing the results goes through
+ * XmlUtility's shared transformer, one connection at a time. Each command locks
+ * the map it works on, so batches on different maps run in parallel while
+ * commands on one map run one at a time, except that on a sharded map,
+ * createCity and deleteCity commands on different shards run in parallel.
+ *
+ * When no command has used a map for IDLE_MILLIS, a background thread uses the
+ * lull to compact it, if its kd-trees have lazily deleted cities or a pending
+ * rebuild.
+ *
+ * In fast mode, batches are not validated against the schema; instead, each
+ * command's parameters are checked as it runs.
+ */
+public class MeeshQuestServer {
+
+	// Time without a command after which a map is considered idle
+	private final static int IDLE_MILLIS = 5000;
+
+	// Time between checks for idle maps
+	private final static int IDLE_CHECK_MILLIS = 1000;
+
+	private final ServerSocket serverSocket; // socket accepting connections
+	private final ExecutorService connections; // threads serving connections
+	private final ScheduledExecutorService compactor; // thread compacting idle maps
+	private final Object xmlLock = new Object(); // XmlUtility shares one transformer
+	private final ThreadLocal<DocumentBuilder> parsers = // parser of each connection thread
+			ThreadLocal.withInitial(MeeshQuestServer::newParser);
+	private final ConcurrentHashMap<String, CityMap> maps; // resident maps, by name
+	private final boolean validate; // validate batches against the schema?
+
+	/**
+	 * Creates a server on a local port.
+	 *
+	 * @param port     The TCP port on the loopback interface
+	 * @param validate Whether to validate batches against the schema
+	 * @throws IOException If the port cannot be opened
+	 */
+	public MeeshQuestServer(int port, boolean validate) throws IOException {
+		this.validate = validate;
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		connections = Executors.newCachedThreadPool();
+		compactor = Executors.newSingleThreadScheduledExecutor();
+		maps = new ConcurrentHashMap<String, CityMap>();
+	}
+
+	/**
+	 * Accept connections until the process is stopped.
+	 *
+	 * @throws IOException If the server socket fails
+	 */
+	public void run() throws IOException {
+		compactor.scheduleWithFixedDelay(this::compactMaps, IDLE_CHECK_MILLIS, IDLE_CHECK_MILLIS,
+				TimeUnit.MILLISECONDS);
+		while (true) {
+			final Socket socket = serverSocket.accept();
+			connections.execute(() -> serve(socket));
+		}
+	}
+
+	/**
+	 * Compact the maps that are idle and have something to compact. This runs on
+	 * its own thread, so waiting for a map's lock or for a background rebuild
+	 * never holds up accepting connections.
+	 */
+	private void compactMaps() {
+		for (CityMap map : maps.values()) {
+			if (!map.isIdle(IDLE_MILLIS)) {
+				continue;
+			}
+			map.lock.writeLock().lock();
+			try {
+				if (map.isIdle(IDLE_MILLIS) && map.needsCompaction()) { // still idle once locked
+					map.compact();
+				}
+			} finally {
+				map.lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Serve one connection: read a commands document, process it and write back
+	 * the results.
+	 *
+	 * @param socket The client connection
+	 */
+	private void serve(Socket socket) {
+		try (Socket s = socket) {
+			byte[] input = s.getInputStream().readAllBytes(); // until the client shuts down output
+			Document resultsDoc = processBatch(input);
+			OutputStream out = s.getOutputStream();
+			synchronized (xmlLock) {
+				XmlUtility.write(resultsDoc, out);
+			}
+			out.flush();
+		} catch (IOException | TransformerException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Creates a parser configured as XmlUtility's (namespace aware).
+	 */
+	private static DocumentBuilder newParser() {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		try {
+			return factory.newDocumentBuilder();
+		} catch (ParserConfigurationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Parse (and, unless in fast mode, validate) a commands document and run its
+	 * commands against the resident maps. A document that cannot be parsed, or
+	 * whose root lacks well-formed map dimensions, gets a fatalError.
+	 *
+	 * @param input The bytes of the commands document
+	 * @return The results document
+	 */
+	Document processBatch(byte[] input) {
+		DocumentBuilder parser = parsers.get();
+		Document resultsDoc = parser.newDocument();
+		Element rootNode;
+		CommandHandler commandHandler;
+		try {
+			Document inputDoc = MeeshQuest.readCommands(parser, new ByteArrayInputStream(input), validate);
+			rootNode = inputDoc.getDocumentElement();
+			final float mapWidth = Float.parseFloat(rootNode.getAttribute("spatialWidth"));
+			final float mapHeight = Float.parseFloat(rootNode.getAttribute("spatialHeight"));
+			commandHandler = new CommandHandler(resultsDoc, maps, mapWidth, mapHeight);
+		} catch (SAXException | IOException | NumberFormatException e) {
+			Element fatalError = resultsDoc.createElement("fatalError");
+			resultsDoc.appendChild(fatalError);
+			return resultsDoc;
+		}
+		commandHandler.setCheckParameters(!validate);
+		try {
+			MeeshQuest.processCommands(rootNode, commandHandler);
+		} catch (Exception e) {
+			e.printStackTrace(); // return the results produced so far
+		}
+		return resultsDoc;
+	}
+}
@@ -11,5 +11,7 @@ public interface NamedPoint2D {
 	public float get(int i); // get i-th coordinate (0=x, 1=y)
 	public Point2D getPoint2D(); // return the point
 	public String getName(); // get name
+	public float getRadius(); // get radius of influence
+	public int getColorCode(); // get color (code from SymbolTable)
 	public float dist(Point2D p);
 }
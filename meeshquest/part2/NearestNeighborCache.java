@@ -0,0 +1,132 @@
+package cmsc420.meeshquest.part2;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of nearest-neighbor results, keyed by the query
+ * coordinates. Query streams tend to repeat the same points many times between
+ * edits, and a cached answer saves a full tree search.
+ *
+ * Every entry is tagged with the map version at which it was computed. Each
+ * mutation bumps the version in constant time, whatever the number of entries,
+ * and entries with an old version are treated as misses.
+ */
+public class NearestNeighborCache<P extends NamedPoint2D> {
+
+	/**
+	 * A cached answer.
+	 */
+	private class Entry {
+		final P result; // nearest neighbor of the query point
+		final long version; // map version at which the entry is valid
+
+		Entry(P result) {
+			this.result = result;
+			this.version = NearestNeighborCache.this.version;
+		}
+	}
+
+	private final LinkedHashMap<Long, Entry> entries; // entries in access order
+	private long version; // current map version
+	private long hits; // number of successful look-ups
+	private long misses; // number of failed look-ups
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param capacity The maximum number of entries
+	 */
+	public NearestNeighborCache(final int capacity) {
+		entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+		version = hits = misses = 0;
+	}
+
+	/**
+	 * Pack the query coordinates into a key.
+	 */
+	private static Long key(float x, float y) {
+		return ((long) Float.floatToIntBits(x) << 32) | (Float.floatToIntBits(y) & 0xffffffffL);
+	}
+
+	/**
+	 * Look up the nearest neighbor of a point.
+	 *
+	 * @param x The x-coordinate of the query point
+	 * @param y The y-coordinate of the query point
+	 * @return The cached nearest neighbor, or null if there is no valid entry
+	 */
+	public P get(float x, float y) {
+		Long key = key(x, y);
+		Entry e = entries.get(key);
+		if (e == null || e.version != version) {
+			if (e != null) {
+				entries.remove(key); // stale
+			}
+			misses++;
+			return null;
+		}
+		hits++;
+		return e.result;
+	}
+
+	/**
+	 * Store the nearest neighbor of a point.
+	 *
+	 * @param x      The x-coordinate of the query point
+	 * @param y      The y-coordinate of the query point
+	 * @param result The nearest neighbor
+	 */
+	public void put(float x, float y, P result) {
+		entries.put(key(x, y), new Entry(result));
+	}
+
+	/**
+	 * Record a change to the map's cities. This only bumps the version, so every
+	 * entry becomes stale, and is dropped when it is next looked up.
+	 */
+	public void invalidate() {
+		version++;
+	}
+
+	/**
+	 * Drop all entries. Used when the map is cleared.
+	 */
+	public void clear() {
+		version++;
+		entries.clear();
+	}
+
+	/**
+	 * The current map version.
+	 *
+	 * @return The number of mutations recorded so far
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * The number of look-ups answered from the cache.
+	 *
+	 * @return The hit count
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * The number of look-ups that had to search the tree.
+	 *
+	 * @return The miss count
+	 */
+	public long getMisses() {
+		return misses;
+	}
+}
@@ -4,10 +4,37 @@ import java.util.Comparator;
 
 /**
  * Compares two objects that implement the NamedPoint2D
- * interface by name
+ * interface by name. Names are interned, so equal names are usually
+ * the same object and need no character comparison. Names may be
+ * compared ignoring case, which folds one character at a time and
+ * allocates nothing. A map orders its name tree, and so also checks
+ * for duplicate names, with a single comparator.
  */
 public class OrderByName<P extends NamedPoint2D> implements Comparator<P> {
+	private final boolean ignoreCase; // fold case before comparing?
+
+	/**
+	 * Creates a case-sensitive comparator.
+	 */
+	public OrderByName() {
+		this(false);
+	}
+
+	/**
+	 * Creates a comparator.
+	 *
+	 * @param ignoreCase Whether names that differ only in case are equal
+	 */
+	public OrderByName(boolean ignoreCase) {
+		this.ignoreCase = ignoreCase;
+	}
+
 	public int compare(NamedPoint2D p1, NamedPoint2D p2) {
-		return p1.getName().compareTo(p2.getName());
+		String n1 = p1.getName();
+		String n2 = p2.getName();
+		if (n1 == n2) {
+			return 0;
+		}
+		return ignoreCase ? n1.compareToIgnoreCase(n2) : n1.compareTo(n2);
 	}
 }
@@ -0,0 +1,565 @@
+package cmsc420.meeshquest.part2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A point-region (PR) quadtree. The map is recursively divided into four equal
+ * quadrants until each cell holds at most one point. Since the subdivision is
+ * fixed by the map's extent rather than by the data, the tree never needs to be
+ * rebalanced, which suits heavily clustered data.
+ *
+ * The root cell is the map's extent. A point outside it (which the command
+ * handler does not normally allow) doubles the root cell toward the point, so
+ * that subdivision always separates distinct points.
+ *
+ * There are three types of nodes: white (empty cell), black (cell with one
+ * point) and gray (cell split into four quadrants). The quadrants are numbered
+ * 0 = NW, 1 = NE, 2 = SW, 3 = SE, where north is the direction of increasing y.
+ */
+public class PRQuadtree<P extends NamedPoint2D> implements SpatialIndex<P> {
+
+	// -----------------------------------------------------------------
+	// Node processing - Used internally only
+	// -----------------------------------------------------------------
+
+	/**
+	 * A node of the tree. Each node is responsible for a rectangular cell of the map,
+	 * which is passed down during the traversal rather than stored.
+	 */
+	private abstract class Node {
+		abstract P find(P pt, float cx, float cy, float w, float h); // find point in cell
+
+		abstract Node insert(P pt, float cx, float cy, float w, float h); // insert point into cell
+
+		abstract Node delete(P pt, float cx, float cy, float w, float h) throws Exception; // delete point from cell
+
+		abstract int size(); // number of points in cell
+
+		abstract void entryList(List<P> list); // add points of cell to list
+
+		abstract void print(Element element, float cx, float cy, float w, float h, int depth); // print cell
+
+		abstract float maxRadius(); // largest radius of the points in cell
+
+		abstract void covering(P qp, float cx, float cy, float w, float h, int color, List<P> list); // add points of a color covering qp
+
+		abstract void inRange(Region region, float cx, float cy, float w, float h, List<P> list); // add points in region
+	}
+
+	/**
+	 * An empty cell. There is just one white node, shared by all empty cells.
+	 */
+	private class WhiteNode extends Node {
+		P find(P pt, float cx, float cy, float w, float h) {
+			return null;
+		}
+
+		Node insert(P pt, float cx, float cy, float w, float h) {
+			return new BlackNode(pt);
+		}
+
+		Node delete(P pt, float cx, float cy, float w, float h) throws Exception {
+			throw new Exception("cityDoesNotExist");
+		}
+
+		int size() {
+			return 0;
+		}
+
+		void entryList(List<P> list) {
+		}
+
+		void print(Element element, float cx, float cy, float w, float h, int depth) {
+			element.appendChild(element.getOwnerDocument().createElement("white"));
+		}
+
+		float maxRadius() {
+			return 0;
+		}
+
+		void covering(P qp, float cx, float cy, float w, float h, int color, List<P> list) {
+		}
+
+		void inRange(Region region, float cx, float cy, float w, float h, List<P> list) {
+		}
+	}
+
+	/**
+	 * A cell holding exactly one point.
+	 */
+	private class BlackNode extends Node {
+		final P point; // the associated point object
+
+		BlackNode(P point) {
+			this.point = point;
+		}
+
+		P find(P pt, float cx, float cy, float w, float h) {
+			return sameCoordinates(pt, point) ? point : null;
+		}
+
+		/**
+		 * Insertion splits the cell and places both points in the new gray node.
+		 */
+		Node insert(P pt, float cx, float cy, float w, float h) {
+			Node gray = new GrayNode();
+			gray = gray.insert(point, cx, cy, w, h);
+			return gray.insert(pt, cx, cy, w, h);
+		}
+
+		Node delete(P pt, float cx, float cy, float w, float h) throws Exception {
+			if (sameCoordinates(pt, point)) {
+				return white;
+			} else {
+				throw new Exception("cityDoesNotExist");
+			}
+		}
+
+		int size() {
+			return 1;
+		}
+
+		void entryList(List<P> list) {
+			list.add(point);
+		}
+
+		void print(Element element, float cx, float cy, float w, float h, int depth) {
+			Element out = element.getOwnerDocument().createElement("black");
+			out.setAttribute("name", point.getName());
+			out.setAttribute("x", Integer.toString((int) point.getX()));
+			out.setAttribute("y", Integer.toString((int) point.getY()));
+			element.appendChild(out);
+		}
+
+		float maxRadius() {
+			return point.getRadius();
+		}
+
+		void covering(P qp, float cx, float cy, float w, float h, int color, List<P> list) {
+			if ((color < 0 || point.getColorCode() == color) && qp.dist(point.getPoint2D()) <= point.getRadius()) {
+				list.add(point);
+			}
+		}
+
+		void inRange(Region region, float cx, float cy, float w, float h, List<P> list) {
+			if (region.contains(point)) {
+				list.add(point);
+			}
+		}
+	}
+
+	/**
+	 * A cell split into four quadrants. The cell is given by its center (cx, cy)
+	 * and its width and height.
+	 */
+	private class GrayNode extends Node {
+		final Node[] child = newNodeArray(4); // quadrants
+		int size; // number of points in the cell
+		float maxRadius; // largest radius of the points in the cell
+
+		GrayNode() {
+			for (int i = 0; i < 4; i++)
+				child[i] = white;
+			size = 0;
+			maxRadius = 0;
+		}
+
+		P find(P pt, float cx, float cy, float w, float h) {
+			int q = quadrant(pt, cx, cy);
+			return child[q].find(pt, childX(q, cx, w), childY(q, cy, h), w / 2, h / 2);
+		}
+
+		Node insert(P pt, float cx, float cy, float w, float h) {
+			int q = quadrant(pt, cx, cy);
+			child[q] = child[q].insert(pt, childX(q, cx, w), childY(q, cy, h), w / 2, h / 2);
+			size++;
+			maxRadius = Math.max(maxRadius, pt.getRadius());
+			return this;
+		}
+
+		/**
+		 * Delete from this cell. If only one point remains, the cell collapses into a
+		 * black node.
+		 */
+		Node delete(P pt, float cx, float cy, float w, float h) throws Exception {
+			int q = quadrant(pt, cx, cy);
+			child[q] = child[q].delete(pt, childX(q, cx, w), childY(q, cy, h), w / 2, h / 2);
+			size--;
+			if (size == 1) {
+				ArrayList<P> list = new ArrayList<P>(1);
+				entryList(list);
+				return new BlackNode(list.get(0));
+			}
+			maxRadius = 0;
+			for (int i = 0; i < 4; i++)
+				maxRadius = Math.max(maxRadius, child[i].maxRadius());
+			return this;
+		}
+
+		int size() {
+			return size;
+		}
+
+		float maxRadius() {
+			return maxRadius;
+		}
+
+		/**
+		 * Add the points of this cell whose circles contain the query point, skipping
+		 * the cell if even its largest radius does not reach the query point.
+		 */
+		void covering(P qp, float cx, float cy, float w, float h, int color, List<P> list) {
+			if (minDist(qp, cx, cy, w, h) > maxRadius) {
+				return;
+			}
+			for (int q = 0; q < 4; q++)
+				child[q].covering(qp, childX(q, cx, w), childY(q, cy, h), w / 2, h / 2, color, list);
+		}
+
+		/**
+		 * Add the points of this cell that lie in a region, skipping the cell if it
+		 * misses the region.
+		 */
+		void inRange(Region region, float cx, float cy, float w, float h, List<P> list) {
+			if (!region.intersects(cx - w / 2, cy - h / 2, cx + w / 2, cy + h / 2)) {
+				return;
+			}
+			for (int q = 0; q < 4; q++)
+				child[q].inRange(region, childX(q, cx, w), childY(q, cy, h), w / 2, h / 2, list);
+		}
+
+		void entryList(List<P> list) {
+			for (int i = 0; i < 4; i++)
+				child[i].entryList(list);
+		}
+
+		void print(Element element, float cx, float cy, float w, float h, int depth) {
+			Document resultsDoc = element.getOwnerDocument(); // document receiving the output
+			if (depth == 0) { // truncate here
+				Element out = resultsDoc.createElement("truncated");
+				out.setAttribute("size", Integer.toString(size));
+				element.appendChild(out);
+				return;
+			}
+			Element out = resultsDoc.createElement("gray");
+			out.setAttribute("x", Integer.toString((int) cx));
+			out.setAttribute("y", Integer.toString((int) cy));
+			element.appendChild(out);
+			for (int q = 0; q < 4; q++)
+				child[q].print(out, childX(q, cx, w), childY(q, cy, h), w / 2, h / 2, depth - 1);
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Tree utilities
+	// -----------------------------------------------------------------
+
+	/**
+	 * Allocate an array of nodes (Java cannot create arrays of a generic inner
+	 * class directly).
+	 */
+	@SuppressWarnings("unchecked")
+	private Node[] newNodeArray(int n) {
+		return (Node[]) java.lang.reflect.Array.newInstance(Node.class, n);
+	}
+
+	/**
+	 * Do two points have the same coordinates?
+	 */
+	boolean sameCoordinates(P p1, P p2) {
+		return p1.getX() == p2.getX() && p1.getY() == p2.getY();
+	}
+
+	/**
+	 * The quadrant of a cell with center (cx, cy) that contains a point.
+	 */
+	int quadrant(P pt, float cx, float cy) {
+		if (pt.getY() >= cy) {
+			return pt.getX() < cx ? 0 : 1;
+		} else {
+			return pt.getX() < cx ? 2 : 3;
+		}
+	}
+
+	/**
+	 * The x-coordinate of the center of quadrant q of a cell.
+	 */
+	float childX(int q, float cx, float w) {
+		return (q == 0 || q == 2) ? cx - w / 4 : cx + w / 4;
+	}
+
+	/**
+	 * The y-coordinate of the center of quadrant q of a cell.
+	 */
+	float childY(int q, float cy, float h) {
+		return (q == 0 || q == 1) ? cy + h / 4 : cy - h / 4;
+	}
+
+	/**
+	 * Distance from a point to the nearest point of a cell.
+	 */
+	float minDist(P pt, float cx, float cy, float w, float h) {
+		float dx = Math.max(0, Math.abs(pt.getX() - cx) - w / 2);
+		float dy = Math.max(0, Math.abs(pt.getY() - cy) - h / 2);
+		return (float) Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/**
+	 * Nearest-neighbor search in a cell. Quadrants are visited starting with the
+	 * one containing the query point, and skipped if they cannot hold a point
+	 * closer than the best so far by more than the given factor.
+	 *
+	 * @param p      The node of the cell
+	 * @param qp     The query point
+	 * @param best   The best point so far (or null)
+	 * @param factor The approximation factor (1 + epsilon)
+	 * @param color  The color code of the points sought (or ANY_COLOR)
+	 * @return The best point after searching this cell
+	 */
+	P nearestNeighborSearch(Node p, P qp, P best, float cx, float cy, float w, float h, float factor, int color) {
+		if (p instanceof PRQuadtree.BlackNode) {
+			P point = ((BlackNode) p).point;
+			if (color >= 0 && point.getColorCode() != color) {
+				return best;
+			}
+			if (best == null || qp.dist(point.getPoint2D()) < qp.dist(best.getPoint2D())) {
+				return point;
+			}
+			return best;
+		} else if (p instanceof PRQuadtree.GrayNode) {
+			GrayNode g = (GrayNode) p;
+			int first = quadrant(qp, cx, cy);
+			for (int i = 0; i < 4; i++) {
+				int q = (first + i) % 4;
+				float qx = childX(q, cx, w);
+				float qy = childY(q, cy, h);
+				if (best == null || minDist(qp, qx, qy, w / 2, h / 2) * factor < qp.dist(best.getPoint2D())) {
+					best = nearestNeighborSearch(g.child[q], qp, best, qx, qy, w / 2, h / 2, factor, color);
+				}
+			}
+		}
+		return best;
+	}
+
+	// -----------------------------------------------------------------
+	// Private member data
+	// -----------------------------------------------------------------
+
+	private final WhiteNode white = new WhiteNode(); // the empty cell
+	private Node root; // root of the tree
+	private float xLo, yLo; // lower-left corner of the root cell
+	private float width; // width of the root cell
+	private float height; // height of the root cell
+
+	/**
+	 * Does the root cell contain a point?
+	 */
+	private boolean covers(P pt) {
+		return pt.getX() >= xLo && pt.getX() <= xLo + width && pt.getY() >= yLo && pt.getY() <= yLo + height;
+	}
+
+	/**
+	 * Double the root cell toward a point until it contains the point, and
+	 * reinsert all the points into the larger cell.
+	 */
+	private void grow(P pt) {
+		List<P> list = entryList();
+		while (!covers(pt)) {
+			if (pt.getX() < xLo) {
+				xLo -= width;
+			}
+			if (pt.getY() < yLo) {
+				yLo -= height;
+			}
+			width *= 2;
+			height *= 2;
+		}
+		root = white;
+		for (P p : list) {
+			root = root.insert(p, xLo + width / 2, yLo + height / 2, width, height);
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Public members
+	// -----------------------------------------------------------------
+
+	/**
+	 * Creates an empty tree covering a map of the given size.
+	 *
+	 * @param mapWidth  Width of the map (x-extent)
+	 * @param mapHeight Height of the map (y-extent)
+	 */
+	public PRQuadtree(float mapWidth, float mapHeight) {
+		xLo = yLo = 0;
+		width = Math.max(mapWidth, 1);
+		height = Math.max(mapHeight, 1);
+		root = white;
+	}
+
+	public int size() {
+		return root.size();
+	}
+
+	public boolean isEmpty() {
+		return root == white;
+	}
+
+	public P find(P pt) {
+		return root.find(pt, xLo + width / 2, yLo + height / 2, width, height);
+	}
+
+	public void insert(P pt) throws Exception {
+		if (find(pt) != null) {
+			throw new Exception("duplicateCityCoordinates");
+		}
+		if (!covers(pt)) {
+			grow(pt);
+		}
+		root = root.insert(pt, xLo + width / 2, yLo + height / 2, width, height);
+	}
+
+	public void delete(P pt) throws Exception {
+		root = root.delete(pt, xLo + width / 2, yLo + height / 2, width, height);
+	}
+
+	/**
+	 * Delete all points that lie in a region. The points are found by a pruned
+	 * walk, and then deleted one by one, since the quadtree never rebalances.
+	 *
+	 * @param region The region
+	 * @return The deleted points
+	 */
+	public List<P> deleteInRange(Region region) {
+		ArrayList<P> removed = new ArrayList<P>();
+		root.inRange(region, xLo + width / 2, yLo + height / 2, width, height, removed);
+		for (P p : removed) {
+			try {
+				delete(p);
+			} catch (Exception e) {
+				assert (false); // the point was just found
+			}
+		}
+		return removed;
+	}
+
+	public void clear() {
+		root = white;
+	}
+
+	public void compact() {
+		// deletions are never lazy
+	}
+
+	public int rebuildDebt() {
+		return 0; // the quadtree is never rebuilt
+	}
+
+	public boolean needsCompaction() {
+		return false;
+	}
+
+	public void beginBatch() {
+		// the quadtree's shape depends only on its points, so there is nothing to defer
+	}
+
+	public void endBatch() {
+	}
+
+	public List<P> entryList() {
+		ArrayList<P> list = new ArrayList<P>();
+		root.entryList(list);
+		return list;
+	}
+
+	public P nearNS(P queryPoint) throws Exception {
+		return nearNS(queryPoint, 0);
+	}
+
+	public P nearNS(P queryPoint, float epsilon) throws Exception {
+		return nearNS(queryPoint, epsilon, SymbolTable.ANY_COLOR);
+	}
+
+	public P nearNS(P queryPoint, float epsilon, int color) throws Exception {
+		return nearestNeighborSearch(root, queryPoint, null, xLo + width / 2, yLo + height / 2, width, height,
+				1 + epsilon, color);
+	}
+
+	/**
+	 * Find all points whose circle of influence contains a query point.
+	 *
+	 * @param queryPoint The query point
+	 * @return The points covering the query point
+	 */
+	public List<P> covering(P queryPoint) {
+		return covering(queryPoint, SymbolTable.ANY_COLOR);
+	}
+
+	public List<P> covering(P queryPoint, int color) {
+		ArrayList<P> list = new ArrayList<P>();
+		root.covering(queryPoint, xLo + width / 2, yLo + height / 2, width, height, color, list);
+		return list;
+	}
+
+	/**
+	 * Print the tree, down to the given depth. Gray nodes at that depth are
+	 * replaced by a "truncated" element carrying their size.
+	 *
+	 * @param element  the output XML element
+	 * @param maxDepth the number of levels of gray nodes to print
+	 */
+	public void print(Element element, int maxDepth) {
+		Element out = element.getOwnerDocument().createElement("quadtree");
+		element.appendChild(out);
+		root.print(out, xLo + width / 2, yLo + height / 2, width, height, maxDepth);
+	}
+
+	/**
+	 * Print a summary of the tree's shape: the size and height, and for each level
+	 * the number of gray, black and white nodes.
+	 *
+	 * @param element  the output XML element
+	 * @param maxDepth the number of levels to summarize
+	 */
+	public void printSummary(Element element, int maxDepth) {
+		Document resultsDoc = element.getOwnerDocument(); // document receiving the output
+		Element out = resultsDoc.createElement("quadtree");
+		element.appendChild(out);
+		Element summary = resultsDoc.createElement("summary");
+		out.appendChild(summary);
+		summary.setAttribute("size", Integer.toString(size()));
+		ArrayList<Node> level = new ArrayList<Node>(); // nodes of the current level
+		level.add(root);
+		int treeHeight = -1; // height of the tree (number of edges)
+		while (!level.isEmpty()) {
+			treeHeight++;
+			ArrayList<Node> next = new ArrayList<Node>();
+			int nGray = 0, nBlack = 0;
+			for (Node p : level) {
+				if (p instanceof PRQuadtree.GrayNode) {
+					nGray++;
+					for (Node c : ((GrayNode) p).child)
+						next.add(c);
+				} else if (p instanceof PRQuadtree.BlackNode) {
+					nBlack++;
+				}
+			}
+			if (treeHeight < maxDepth) {
+				Element lev = resultsDoc.createElement("level");
+				lev.setAttribute("depth", Integer.toString(treeHeight));
+				lev.setAttribute("gray", Integer.toString(nGray));
+				lev.setAttribute("black", Integer.toString(nBlack));
+				lev.setAttribute("white", Integer.toString(level.size() - nGray - nBlack));
+				lev.setAttribute("fill", String.format(Locale.US, "%.3f", (float) nBlack / level.size()));
+				summary.appendChild(lev);
+			}
+			level = next;
+		}
+		summary.setAttribute("height", Integer.toString(treeHeight));
+	}
+}
@@ -0,0 +1,104 @@
+package cmsc420.meeshquest.part2;
+
+/**
+ * A closed region of the plane, used to select the points of a range query:
+ * either an axis-parallel rectangle or a circle. Besides testing points, a
+ * region can be tested against a box (the bounding box of a subtree or cell),
+ * so that searches can skip boxes outside the region and take boxes inside it
+ * whole.
+ */
+public class Region {
+
+	private final boolean isCircle; // circle (else rectangle)
+	private final float xLo, yLo, xHi, yHi; // bounding box
+	private final float cx, cy, radius; // center and radius (circle only)
+
+	private Region(boolean isCircle, float xLo, float yLo, float xHi, float yHi, float cx, float cy, float radius) {
+		this.isCircle = isCircle;
+		this.xLo = xLo;
+		this.yLo = yLo;
+		this.xHi = xHi;
+		this.yHi = yHi;
+		this.cx = cx;
+		this.cy = cy;
+		this.radius = radius;
+	}
+
+	/**
+	 * The rectangle [x, x + width] by [y, y + height].
+	 */
+	public static Region rectangle(float x, float y, float width, float height) {
+		return new Region(false, x, y, x + width, y + height, 0, 0, 0);
+	}
+
+	/**
+	 * The disk of the given radius about (x, y).
+	 */
+	public static Region circle(float x, float y, float radius) {
+		return new Region(true, x - radius, y - radius, x + radius, y + radius, x, y, radius);
+	}
+
+	public float getXLo() {
+		return xLo;
+	}
+
+	public float getYLo() {
+		return yLo;
+	}
+
+	public float getXHi() {
+		return xHi;
+	}
+
+	public float getYHi() {
+		return yHi;
+	}
+
+	/**
+	 * Does the region contain a point?
+	 */
+	public boolean contains(float x, float y) {
+		if (x < xLo || x > xHi || y < yLo || y > yHi) {
+			return false;
+		}
+		if (isCircle) {
+			float dx = x - cx;
+			float dy = y - cy;
+			return dx * dx + dy * dy <= radius * radius;
+		}
+		return true;
+	}
+
+	/**
+	 * Does the region contain a point?
+	 */
+	public boolean contains(NamedPoint2D pt) {
+		return contains(pt.getX(), pt.getY());
+	}
+
+	/**
+	 * Does the region meet the box [bxLo, bxHi] by [byLo, byHi]? The bounds of the
+	 * box may be infinite.
+	 */
+	public boolean intersects(float bxLo, float byLo, float bxHi, float byHi) {
+		if (bxHi < xLo || bxLo > xHi || byHi < yLo || byLo > yHi) {
+			return false;
+		}
+		if (isCircle) { // nearest point of the box to the center
+			float dx = Math.max(0, Math.max(bxLo - cx, cx - bxHi));
+			float dy = Math.max(0, Math.max(byLo - cy, cy - byHi));
+			return dx * dx + dy * dy <= radius * radius;
+		}
+		return true;
+	}
+
+	/**
+	 * Does the region contain the whole box [bxLo, bxHi] by [byLo, byHi]?
+	 */
+	public boolean containsBox(float bxLo, float byLo, float bxHi, float byHi) {
+		if (isCircle) { // all four corners must be inside
+			return contains(bxLo, byLo) && contains(bxLo, byHi) && contains(bxHi, byLo) && contains(bxHi, byHi);
+		}
+		return bxLo >= xLo && bxHi <= xHi && byLo >= yLo && byHi <= yHi;
+	}
+}
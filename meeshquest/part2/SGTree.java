@@ -6,13 +6,17 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-public class SGTree<P extends NamedPoint2D> {
+public class SGTree<P extends NamedPoint2D> implements SpatialIndex<P> {
 //	private final boolean DEBUG = true; // produce extra debugging output
 	private final boolean DEBUG = false; // produce extra debugging output
 
-	private final int BALANCE_NUM = 2; // numerator in balance ratio
-	private final int BALANCE_DENOM = 3; // denominator in balance ratio
+	private final BalancePolicy policy; // balance ratio and delete threshold
 
 	// -----------------------------------------------------------------
 	// Node processing - Used internally only
@@ -42,9 +46,14 @@ public class SGTree<P extends NamedPoint2D> {
 
 		abstract void entryList(List<P> list); // return list of entries in subtree
 
-		abstract void print(Element result); // print subtree to result
+		abstract void print(Element result, int depth); // print subtree to result, up to depth levels
 
-		abstract P nearestNeighborSearch(P queryPoint, P candidate) throws Exception;
+		abstract P nearestNeighborSearch(P queryPoint, P candidate, float xLo, float yLo, float xHi, float yHi,
+				float factor, int color) throws Exception; // search subtree, whose points lie in the box
+
+		abstract void covering(P qp, float xLo, float yLo, float xHi, float yHi, int color, List<P> list); // add points whose circles contain qp
+
+		abstract Node deleteInRange(Region region, float xLo, float yLo, float xHi, float yHi, List<P> removed); // unlink points in region
 	}
 
 	// -----------------------------------------------------------------
@@ -60,6 +69,9 @@ public class SGTree<P extends NamedPoint2D> {
 		final P splitter; // point object used for splitting
 		int size; // node size (number of external descendants)
 		int height; // node height (max number of edges to external)
+		float maxRadius; // largest radius among external descendants
+		int dead; // number of lazily deleted external descendants
+		long colors; // colors of the live external descendants (mask of SymbolTable.colorBit)
 		
 		Node left; // children
 		Node right;
@@ -87,9 +99,39 @@ public class SGTree<P extends NamedPoint2D> {
 			updateSizeAndHeight();
 		}
 
-		P nearestNeighborSearch(P qp, P best) throws Exception {
-			best = left.nearestNeighborSearch(qp, best); 				
-			best = right.nearestNeighborSearch(qp, best); 
+		/**
+		 * Nearest-neighbor search in this subtree. The subtree's points lie in the
+		 * given box, and the splitter narrows the box for each child. The subtree is
+		 * skipped if it holds no live point of the color sought, or if the box is too
+		 * far away for any of its points to beat the best distance so far by more than
+		 * the given factor. Children are searched left then right, so with a factor of
+		 * 1 the result is that of a full search.
+		 *
+		 * @param qp     The query point
+		 * @param best   The best point so far (or null)
+		 * @param xLo    The box containing the subtree's points
+		 * @param yLo
+		 * @param xHi
+		 * @param yHi
+		 * @param factor The approximation factor (1 + epsilon)
+		 * @param color  The color code of the points sought (or ANY_COLOR)
+		 * @return The best point after searching this subtree
+		 */
+		P nearestNeighborSearch(P qp, P best, float xLo, float yLo, float xHi, float yHi, float factor, int color)
+				throws Exception {
+			if ((colors & SymbolTable.colorBit(color)) == 0) {
+				return best; // no live point of the color here
+			}
+			if (best != null && boxDist(qp, xLo, yLo, xHi, yHi) * factor >= qp.dist(best.getPoint2D())) {
+				return best; // nothing in this subtree is close enough to matter
+			}
+			if (SDim == 0) {
+				best = left.nearestNeighborSearch(qp, best, xLo, yLo, splitter.getX(), yHi, factor, color);
+				best = right.nearestNeighborSearch(qp, best, splitter.getX(), yLo, xHi, yHi, factor, color);
+			} else {
+				best = left.nearestNeighborSearch(qp, best, xLo, yLo, xHi, splitter.getY(), factor, color);
+				best = right.nearestNeighborSearch(qp, best, xLo, splitter.getY(), xHi, yHi, factor, color);
+			}
 			return best;
 		}
 
@@ -136,7 +178,7 @@ public class SGTree<P extends NamedPoint2D> {
 		 */
 		Node rebalance(P pt) {
 			if (comparator.compare(pt, splitter) <= 0) { // pt is less or equal based on the cutting dimension
-				if (2 * getSize(this) < 3 * getSize(left)) { // too unbalanced?
+				if (policy.isUnbalanced(getSize(this), getSize(left))) { // too unbalanced?
 					return rebuild(this); // this is the scapegoat
 				} else { // balance is okay
 					left = left.rebalance(pt); // continue the search
@@ -144,7 +186,7 @@ public class SGTree<P extends NamedPoint2D> {
 					return this;
 				}
 			} else { // pt is larger
-				if (2 * getSize(this) < 3 * getSize(right)) { // too unbalanced?
+				if (policy.isUnbalanced(getSize(this), getSize(right))) { // too unbalanced?
 					return rebuild(this); // this is the scapegoat
 				} else { // balance is okay
 					right = right.rebalance(pt); // continue the search
@@ -185,13 +227,84 @@ public class SGTree<P extends NamedPoint2D> {
 		}
 
 		/**
-		 * Updates the size and height of an internal node.
+		 * Updates the size, height and maximum radius of an internal node.
 		 *
 		 * @param p The node whose information is to be updated
 		 */
 		void updateSizeAndHeight() {
 			size = getSize(left) + getSize(right);
 			height = 1 + Math.max(getHeight(left), getHeight(right));
+			maxRadius = Math.max(getMaxRadius(left), getMaxRadius(right));
+			dead = getDead(left) + getDead(right);
+			colors = getColors(left) | getColors(right);
+		}
+
+		/**
+		 * Add the points of this subtree whose circles contain the query point. The
+		 * subtree's points lie in the given box, so if even the largest radius in the
+		 * subtree does not reach the box, the subtree is skipped. The splitter narrows
+		 * the box for each child.
+		 *
+		 * @param qp    The query point
+		 * @param xLo   The box containing the subtree's points
+		 * @param yLo
+		 * @param xHi
+		 * @param yHi
+		 * @param color The color code of the points sought (or ANY_COLOR)
+		 * @param list  The list into which the points are added
+		 */
+		void covering(P qp, float xLo, float yLo, float xHi, float yHi, int color, List<P> list) {
+			float dx = Math.max(0, Math.max(xLo - qp.getX(), qp.getX() - xHi));
+			float dy = Math.max(0, Math.max(yLo - qp.getY(), qp.getY() - yHi));
+			if ((colors & SymbolTable.colorBit(color)) == 0 || dx * dx + dy * dy > maxRadius * maxRadius) {
+				return; // no live circle of the color in this subtree reaches the query point
+			}
+			if (SDim == 0) {
+				left.covering(qp, xLo, yLo, splitter.getX(), yHi, color, list);
+				right.covering(qp, splitter.getX(), yLo, xHi, yHi, color, list);
+			} else {
+				left.covering(qp, xLo, yLo, xHi, splitter.getY(), color, list);
+				right.covering(qp, xLo, splitter.getY(), xHi, yHi, color, list);
+			}
+		}
+
+		/**
+		 * Unlink the points of this subtree that lie in a region. A subtree whose box
+		 * misses the region is left alone, and one whose box lies inside the region is
+		 * detached whole. Nodes left with one child are replaced by that child, but
+		 * no rebalancing is done here.
+		 *
+		 * @param region  The region
+		 * @param xLo     The box containing the subtree's points
+		 * @param yLo
+		 * @param xHi
+		 * @param yHi
+		 * @param removed The list into which the removed (live) points are added
+		 * @return The updated root of the subtree (null if it is empty)
+		 */
+		Node deleteInRange(Region region, float xLo, float yLo, float xHi, float yHi, List<P> removed) {
+			if (!region.intersects(xLo, yLo, xHi, yHi)) {
+				return this; // nothing to remove
+			}
+			if (region.containsBox(xLo, yLo, xHi, yHi)) {
+				entryList(removed); // remove the whole subtree
+				nDead -= dead;
+				return null;
+			}
+			if (SDim == 0) {
+				left = left.deleteInRange(region, xLo, yLo, splitter.getX(), yHi, removed);
+				right = right.deleteInRange(region, splitter.getX(), yLo, xHi, yHi, removed);
+			} else {
+				left = left.deleteInRange(region, xLo, yLo, xHi, splitter.getY(), removed);
+				right = right.deleteInRange(region, xLo, splitter.getY(), xHi, yHi, removed);
+			}
+			if (left == null) {
+				return right; // subtree gone, return sibling
+			} else if (right == null) {
+				return left;
+			}
+			updateSizeAndHeight();
+			return this;
 		}
 
 		/**
@@ -205,12 +318,22 @@ public class SGTree<P extends NamedPoint2D> {
 		}
 
 		/**
-		 * Print node information to result.
+		 * Print node information to result. If no levels remain, the subtree is
+		 * replaced by a stub giving its size and height.
 		 * 
 		 * @param element The document element in which to store result
+		 * @param depth   The number of levels still to print
 		 *
 		 */
-		void print(Element element) {
+		void print(Element element, int depth) {
+			Document resultsDoc = element.getOwnerDocument(); // document receiving the output
+			if (depth == 0) { // truncate here
+				Element out = resultsDoc.createElement("truncated");
+				out.setAttribute("size", Integer.toString(size));
+				out.setAttribute("height", Integer.toString(height));
+				element.appendChild(out);
+				return;
+			}
 			// print this item
 			Element out = resultsDoc.createElement("internal");
 			out.setAttribute("splitDim", Integer.toString((int) SDim));
@@ -218,8 +341,8 @@ public class SGTree<P extends NamedPoint2D> {
 			out.setAttribute("y", Integer.toString((int) splitter.getY()));
 			element.appendChild(out);
 
-			left.print(out); // recurse on children
-			right.print(out);
+			left.print(out, depth - 1); // recurse on children
+			right.print(out, depth - 1);
 		}
 
 	}
@@ -229,11 +352,13 @@ public class SGTree<P extends NamedPoint2D> {
 	// -----------------------------------------------------------------
 
 	/**
-	 * An external node of the tree. This stores an object of type P.
+	 * An external node of the tree. This stores an object of type P. With lazy
+	 * deletion, a deleted point stays in its node, which is marked dead.
 	 */
 	private class ExternalNode extends Node {
 		private final Comparator<P> comparator= new OrderByCoordinate<P>(); // comparator for ordering the tree
-		final P point; // the associated point object
+		P point; // the associated point object
+		boolean dead; // deleted lazily?
 
 		/**
 		 * Constructor from a point.
@@ -253,7 +378,7 @@ public class SGTree<P extends NamedPoint2D> {
 		 * @return A reference to the point if found or else null
 		 */
 		P find(P pt) {
-			if (comparator.compare(pt, point) == 0)
+			if (!dead && comparator.compare(pt, point) == 0)
 				return point;
 			else
 				return null;
@@ -268,6 +393,10 @@ public class SGTree<P extends NamedPoint2D> {
 		 * @return The root of the new subtree.
 		 */
 		Node insert(P pt) throws Exception {
+			if (dead) { // the new point takes the place of the dead one
+				nDead--;
+				return new ExternalNode(pt);
+			}
 			ArrayList<P> list = new ArrayList<P>(); // array list for points
 			list.add(pt); // add points to list
 			list.add(point);
@@ -277,13 +406,15 @@ public class SGTree<P extends NamedPoint2D> {
 		}
 
 		/**
-		 * Find the scapegoat and rebalance tree.
+		 * Find the scapegoat and rebalance tree. Reaching an external node means that
+		 * the search path has no scapegoat. This happens when the tree was already too
+		 * tall off the path, as after the balance ratio is tightened or while a
+		 * rebuild is deferred to the background, so the node is left as it is.
 		 *
 		 * @param pt The point defining the search path
 		 */
 		Node rebalance(P pt) {
-			assert (false); // should never get here
-			return null;
+			return this;
 		}
 
 		/**
@@ -306,23 +437,32 @@ public class SGTree<P extends NamedPoint2D> {
 		 * @param list The list into which items are added
 		 */
 		void entryList(List<P> list) {
-			list.add(point);
+			if (!dead)
+				list.add(point);
 		}
 
 		/**
 		 * Print node information to result.
 		 * 
 		 * @param element The element of the document
+		 * @param depth   The number of levels still to print (unused)
 		 */
-		void print(Element element) {
+		void print(Element element, int depth) {
+			Document resultsDoc = element.getOwnerDocument(); // document receiving the output
 			Element out = resultsDoc.createElement("external");
 			out.setAttribute("name", point.getName());
 			out.setAttribute("x", Integer.toString((int) point.getX()));
 			out.setAttribute("y", Integer.toString((int) point.getY()));
+			if (dead)
+				out.setAttribute("deleted", "true");
 			element.appendChild(out);
 		}
 
-		P nearestNeighborSearch(P qp, P best) throws Exception {
+		P nearestNeighborSearch(P qp, P best, float xLo, float yLo, float xHi, float yHi, float factor, int color)
+				throws Exception {
+			if (dead || (color >= 0 && point.getColorCode() != color)) {
+				return best;
+			}
 			if (best == null) { 
 				return point;
 			} 
@@ -336,6 +476,31 @@ public class SGTree<P extends NamedPoint2D> {
 				}
 			}
 		}
+
+		/**
+		 * Unlink this node if its point lies in the region.
+		 */
+		Node deleteInRange(Region region, float xLo, float yLo, float xHi, float yHi, List<P> removed) {
+			if (!region.contains(point)) {
+				return this;
+			}
+			if (dead) {
+				nDead--;
+			} else {
+				removed.add(point);
+			}
+			return null;
+		}
+
+		/**
+		 * Add the point to the list if its circle contains the query point.
+		 */
+		void covering(P qp, float xLo, float yLo, float xHi, float yHi, int color, List<P> list) {
+			if (!dead && (color < 0 || point.getColorCode() == color)
+					&& qp.dist(point.getPoint2D()) <= point.getRadius()) {
+				list.add(point);
+			}
+		}
 	}
 
 	// -----------------------------------------------------------------
@@ -372,12 +537,106 @@ public class SGTree<P extends NamedPoint2D> {
 			return ((InternalNode) p).height;
 	}
 
+	/**
+	 * Returns the number of dead (lazily deleted) points in a node's subtree.
+	 *
+	 * @param p The root of the subtree
+	 *
+	 * @return The number of dead external nodes in the subtree
+	 */
+	@SuppressWarnings("unchecked")
+	int getDead(Node p) {
+		if (p.isExternal)
+			return ((ExternalNode) p).dead ? 1 : 0;
+		else
+			return ((InternalNode) p).dead;
+	}
+
+	/**
+	 * Returns the colors of the live points in a node's subtree.
+	 *
+	 * @param p The root of the subtree
+	 *
+	 * @return The mask of the colors (see SymbolTable.colorBit)
+	 */
+	@SuppressWarnings("unchecked")
+	long getColors(Node p) {
+		if (p.isExternal) {
+			ExternalNode q = (ExternalNode) p;
+			return q.dead ? 0 : SymbolTable.colorBit(q.point.getColorCode());
+		} else
+			return ((InternalNode) p).colors;
+	}
+
+	/**
+	 * Rebuild the subtrees left out of balance by a batch of updates. Only
+	 * subtrees taller than their size allows are searched, since a subtree that is
+	 * within its height bound needs no rebuild. In a subtree that is too tall, a
+	 * node whose larger child fails the balance ratio is a scapegoat, and is
+	 * rebuilt; otherwise the subtree's own children are too tall, and are searched
+	 * in turn.
+	 *
+	 * @param p The root of the subtree
+	 * @return The updated root of the subtree
+	 */
+	@SuppressWarnings("unchecked")
+	Node restoreBalance(Node p) {
+		if (p.isExternal || getHeight(p) <= policy.maxHeight(getSize(p))) {
+			return p; // balanced enough
+		}
+		InternalNode q = (InternalNode) p;
+		if (policy.isUnbalanced(getSize(q), Math.max(getSize(q.left), getSize(q.right)))) {
+			return rebuild(q); // this is a scapegoat
+		}
+		q.left = restoreBalance(q.left);
+		q.right = restoreBalance(q.right);
+		q.updateSizeAndHeight();
+		return q;
+	}
+
+	/**
+	 * Returns the distance from a point to the nearest point of a box. This is
+	 * computed in the same way as the distance between points, so it never exceeds
+	 * the computed distance to a point in the box.
+	 *
+	 * @param qp  The point
+	 * @param xLo The box (its bounds may be infinite)
+	 * @param yLo
+	 * @param xHi
+	 * @param yHi
+	 * @return The distance from the point to the box
+	 */
+	float boxDist(P qp, float xLo, float yLo, float xHi, float yHi) {
+		float dx = Math.max(0, Math.max(xLo - qp.getX(), qp.getX() - xHi));
+		float dy = Math.max(0, Math.max(yLo - qp.getY(), qp.getY() - yHi));
+		return (float) Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/**
+	 * Returns the largest radius of the points in a node's subtree.
+	 *
+	 * @param p The root of the subtree
+	 *
+	 * @return The largest radius in the subtree
+	 */
+	@SuppressWarnings("unchecked")
+	float getMaxRadius(Node p) {
+		if (p.isExternal)
+			return ((ExternalNode) p).point.getRadius();
+		else
+			return ((InternalNode) p).maxRadius;
+	}
+
 	Node rebuild(Node p) {
 		if (p.isExternal) {
 			return p; // external - nothing to do
 		}
+		if (deferRebuild(p)) {
+			return p; // rebuilt in the background instead
+		}
 		ArrayList<P> list = new ArrayList<P>(); // place to store points
 		p.entryList(list); // get all the cities under this node, and stored in the list
+		nDead -= getDead(p); // dead points are dropped
 
 		Node t = buildTree(list); // build new subtree from the list
 		
@@ -420,23 +679,248 @@ public class SGTree<P extends NamedPoint2D> {
 
 	private Node root = null; // root of the tree
 
-	private final Document resultsDoc; // results document (for printing)
-	private int nItems; // number of items (equals getSize(root))
+	private int nItems; // number of items (live points)
 	private int maxItems; // upper bound on the number of items
+	private int nDead; // number of dead points still in the tree (nItems + nDead equals getSize(root))
+	private final boolean lazyDelete; // mark deleted points dead instead of unlinking them?
+	private boolean inBatch; // are balance checks deferred to the end of a batch?
+
+	// Factor by which a batch may exceed the height bound before the end of the
+	// batch, so that updates in sorted order cannot make a path linear
+	private static final int BATCH_SLACK = 2;
+
+	// Threads that build replacement subtrees for background rebuilds, one per
+	// core and shared by all trees, so that the shards of a map rebuild in
+	// parallel without each tree keeping a thread of its own
+	private static final ExecutorService rebuilder = Executors
+			.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+				Thread t = new Thread(r, "kd-tree rebuild");
+				t.setDaemon(true);
+				return t;
+			});
+
+	private final int asyncRebuild; // rebuilds of at least this many points run in the background (0 = never)
+	private InternalNode wantedTarget; // largest subtree whose rebuild was deferred (or null)
+	private InternalNode pendingTarget; // subtree being rebuilt in the background (or null)
+	private Future<Node> pendingRoot; // replacement subtree being built in the background (or null)
+	private int pendingSize; // number of points in the replacement subtree
+	private ArrayList<Mutation> replayLog; // updates in the subtree since its snapshot was taken
+	private int asyncRebuilds; // number of replacement trees swapped in
+
+	/**
+	 * An update to be replayed on a replacement tree.
+	 */
+	private class Mutation {
+		final P point; // the point inserted or deleted
+		final boolean isInsert; // insertion (else deletion)
+
+		Mutation(P point, boolean isInsert) {
+			this.point = point;
+			this.isInsert = isInsert;
+		}
+	}
+
+	/**
+	 * Should the rebuild of a subtree be left to the background? If so, the request
+	 * is noted, and started once the current operation is done (or once the
+	 * background rebuild under way is swapped in).
+	 *
+	 * @param p The root of the subtree
+	 * @return True if the subtree is to be left as it is
+	 */
+	private boolean deferRebuild(Node p) {
+		if (asyncRebuild <= 0 || p.isExternal || getSize(p) - getDead(p) < asyncRebuild) {
+			return false;
+		}
+		if (p != pendingTarget && (wantedTarget == null || getSize(p) > getSize(wantedTarget))) {
+			wantedTarget = (InternalNode) p;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the internal nodes on the search path for a point from the root down
+	 * to a subtree, root first and excluding the subtree's root. The path for any
+	 * point in the subtree's region passes through it, so this also tells whether
+	 * the subtree is still in the tree.
+	 *
+	 * @param target The root of the subtree
+	 * @param pt     A point in the region of the subtree
+	 * @return The path, or null if the search path does not reach the subtree
+	 */
+	private List<InternalNode> pathTo(InternalNode target, P pt) {
+		List<InternalNode> path = new ArrayList<InternalNode>();
+		Node p = root;
+		while (p != target) {
+			if (p == null || p.isExternal) {
+				return null;
+			}
+			InternalNode q = (InternalNode) p;
+			path.add(q);
+			p = (q.comparator.compare(pt, q.splitter) <= 0) ? q.left : q.right;
+		}
+		return path;
+	}
+
+	/**
+	 * Log an update for the replacement subtree being built, if it falls in the
+	 * subtree's region.
+	 *
+	 * @param pt       The point inserted or deleted
+	 * @param isInsert Whether the point was inserted
+	 */
+	private void logUpdate(P pt, boolean isInsert) {
+		if (pendingTarget != null && pathTo(pendingTarget, pt) != null) {
+			replayLog.add(new Mutation(pt, isInsert));
+		}
+	}
+
+	/**
+	 * Start a background rebuild if one was deferred, none is under way and the
+	 * subtree is still in the tree. Only the live points of the subtree are
+	 * copied, and the replacement subtree is built from the copy, while this tree
+	 * goes on serving queries and updates.
+	 */
+	private void startDeferredRebuild() {
+		InternalNode target = wantedTarget;
+		if (target == null || pendingRoot != null) {
+			return;
+		}
+		wantedTarget = null;
+		if (pathTo(target, target.splitter) == null) {
+			return; // replaced since the request
+		}
+		final List<P> snapshot = new ArrayList<P>();
+		target.entryList(snapshot);
+		pendingTarget = target;
+		pendingSize = snapshot.size();
+		replayLog = new ArrayList<Mutation>();
+		pendingRoot = rebuilder.submit(() -> buildTree(snapshot));
+	}
+
+	/**
+	 * Swap in the replacement subtree of a background rebuild, if it is ready. The
+	 * updates logged in the subtree since its snapshot are then replayed on it. If
+	 * the subtree was replaced in the meantime (by a rebuild or deletion above
+	 * it), the replacement is dropped.
+	 *
+	 * @param wait If true, wait for the replacement subtree to be finished
+	 */
+	private void swapRebuilt(boolean wait) {
+		if (pendingRoot == null || (!wait && !pendingRoot.isDone())) {
+			return;
+		}
+		Node rebuilt;
+		try {
+			rebuilt = pendingRoot.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IllegalStateException("kd-tree: background rebuild failed", e);
+		}
+		InternalNode target = pendingTarget;
+		ArrayList<Mutation> log = replayLog;
+		pendingRoot = null;
+		pendingTarget = null;
+		replayLog = null;
+		List<InternalNode> path = pathTo(target, target.splitter);
+		if (path != null) {
+			nItems += pendingSize - (getSize(target) - getDead(target)); // back to the snapshot
+			nDead -= getDead(target);
+			if (path.isEmpty()) {
+				root = rebuilt;
+				maxItems = nItems;
+			} else {
+				InternalNode parent = path.get(path.size() - 1);
+				if (parent.left == target) {
+					parent.left = rebuilt;
+				} else {
+					parent.right = rebuilt;
+				}
+				updatePath(path);
+			}
+			asyncRebuilds++;
+			if (DEBUG) {
+				System.out.println("kd-tree: Swapped in rebuilt subtree. n = " + pendingSize + " replayed = " + log.size());
+				System.out.println();
+			}
+			int max = maxItems;
+			for (Mutation u : log) {
+				try {
+					if (u.isInsert) {
+						insertPoint(u.point);
+					} else {
+						deletePoint(u.point);
+					}
+				} catch (Exception e) {
+					throw new IllegalStateException("kd-tree: replay failed for " + u.point.getName(), e);
+				}
+			}
+			if (!path.isEmpty()) {
+				maxItems = max; // the replayed updates were counted when first made
+			}
+		}
+		startDeferredRebuild();
+	}
+
+	/**
+	 * Returns the external node at the end of the search path for a point, and
+	 * collects the internal nodes on the path.
+	 *
+	 * @param pt   The point defining the search path
+	 * @param path The list into which the internal nodes are added, root first
+	 * @return The external node reached, or null if the tree is empty
+	 */
+	private ExternalNode leafOf(P pt, List<InternalNode> path) {
+		Node p = root;
+		while (p != null && !p.isExternal) {
+			InternalNode q = (InternalNode) p;
+			path.add(q);
+			p = (q.comparator.compare(pt, q.splitter) <= 0) ? q.left : q.right;
+		}
+		return (ExternalNode) p;
+	}
+
+	/**
+	 * Update the information of the internal nodes on a search path, from the
+	 * bottom up.
+	 *
+	 * @param path The internal nodes on the path, root first
+	 */
+	private void updatePath(List<InternalNode> path) {
+		for (int i = path.size() - 1; i >= 0; i--) {
+			path.get(i).updateSizeAndHeight();
+		}
+	}
 
 	// -----------------------------------------------------------------
 	// Public members
 	// -----------------------------------------------------------------
 
 	/**
-	 * Creates an empty tree with the given comparator.
+	 * Creates an empty tree with the standard balance policy.
+	 */
+	public SGTree() {
+		this(new BalancePolicy(), false, 0);
+	}
+
+	/**
+	 * Creates an empty tree.
 	 *
-	 * @param comparator The comparator used for ordering the tree
+	 * @param policy     The balance ratio and delete threshold of the tree
+	 * @param lazyDelete If true, deletion only marks a point dead, and the tree is
+	 *                   compacted in one rebuild once the dead points pass the
+	 *                   delete threshold (or when compact is called)
+	 * @param asyncRebuild If positive, rebuilds of at least this many points are
+	 *                   done in the background: the replacement subtree is built
+	 *                   from a copy of the subtree's points, while this tree keeps
+	 *                   serving queries, and it is swapped in by the first
+	 *                   operation after it is ready. If 0, all rebuilds are done in place.
 	 */
-	public SGTree(Document resultsDoc) {
+	public SGTree(BalancePolicy policy, boolean lazyDelete, int asyncRebuild) {
+		this.policy = policy;
+		this.lazyDelete = lazyDelete;
+		this.asyncRebuild = asyncRebuild;
 		root = null;
-		this.resultsDoc = resultsDoc;
-		maxItems = nItems = 0;
+		maxItems = nItems = nDead = 0;
 	}
 
 	/**
@@ -470,7 +954,25 @@ public class SGTree<P extends NamedPoint2D> {
 	 * @param point The point to be inserted
 	 */
 	public void insert(P pt) throws Exception {
+		swapRebuilt(false);
+		insertPoint(pt);
+		logUpdate(pt, true);
+		startDeferredRebuild();
+	}
 
+	private void insertPoint(P pt) throws Exception { // insert, without logging
+		if (nDead > 0) { // revive a dead point with the same coordinates?
+			ArrayList<InternalNode> path = new ArrayList<InternalNode>();
+			ExternalNode leaf = leafOf(pt, path);
+			if (leaf != null && leaf.dead && leaf.comparator.compare(pt, leaf.point) == 0) {
+				leaf.point = pt;
+				leaf.dead = false;
+				updatePath(path);
+				nItems++;
+				nDead--;
+				return;
+			}
+		}
 		if (root == null) {
 			root = new ExternalNode(pt);
 		} else {
@@ -479,9 +981,9 @@ public class SGTree<P extends NamedPoint2D> {
 		// keep tracking the size and height of tree
 		nItems++;
 		maxItems++;
-		assert (nItems == getSize(root));
-		int maxAllowedHeight = (int) (Math.log(maxItems) / Math.log((double) BALANCE_DENOM / (double) BALANCE_NUM));
-		if (getHeight(root) > maxAllowedHeight) { // out of balance
+		assert (nItems + nDead == getSize(root));
+		int maxHeight = policy.maxHeight(maxItems);
+		if (getHeight(root) > (inBatch ? BATCH_SLACK * maxHeight : maxHeight)) { // out of balance
 			root = root.rebalance(pt);
 		}
 	}
@@ -493,14 +995,38 @@ public class SGTree<P extends NamedPoint2D> {
 	 * @param point The point to be deleted
 	 */
 	public void delete(P pt) throws Exception {
-		
+		swapRebuilt(false);
+		deletePoint(pt);
+		logUpdate(pt, false);
+		// compact only once the deletion is logged, or the swap would revive it
+		if (lazyDelete && !inBatch && policy.needsRebuild(nItems, maxItems) && !deferRebuild(root)) {
+			compact();
+		}
+		startDeferredRebuild();
+	}
+
+	private void deletePoint(P pt) throws Exception { // delete, without logging
+		if (lazyDelete) {
+			ArrayList<InternalNode> path = new ArrayList<InternalNode>();
+			ExternalNode leaf = leafOf(pt, path);
+			if (leaf == null || leaf.find(pt) == null) {
+				throw new Exception("cityDoesNotExist");
+			}
+			leaf.dead = true;
+			updatePath(path);
+			nItems--;
+			nDead++;
+			return;
+		}
 		if (root == null) {
 			throw new Exception("cityDoesNotExist");
 		} else {
 			root = root.delete(pt);
 		}
 		nItems--;
-		if (2 * nItems < maxItems) {
+		if (root == null) { // last point deleted
+			maxItems = 0;
+		} else if (!inBatch && policy.needsRebuild(nItems, maxItems)) {
 			root = rebuild(root);
 			if (DEBUG) {
 				System.out.println("kd-tree: Triggered rebuild after deletion. n = " + nItems + " m = " + maxItems);
@@ -510,18 +1036,127 @@ public class SGTree<P extends NamedPoint2D> {
 		}
 	}
 
+	/**
+	 * Delete all points that lie in a region. Matching points are unlinked in one
+	 * pruned walk, which detaches subtrees lying wholly inside the region. The tree
+	 * is then rebuilt at most once, if the deletions pass the delete threshold.
+	 *
+	 * @param region The region
+	 * @return The deleted points
+	 */
+	public List<P> deleteInRange(Region region) {
+		swapRebuilt(false);
+		ArrayList<P> removed = new ArrayList<P>();
+		if (root != null) {
+			root = root.deleteInRange(region, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY,
+					Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, removed);
+		}
+		nItems -= removed.size();
+		if (root == null) {
+			maxItems = nItems = nDead = 0;
+		} else if (policy.needsRebuild(nItems, maxItems)) {
+			root = rebuild(root);
+			maxItems = nItems;
+		}
+		for (P pt : removed) {
+			logUpdate(pt, false);
+		}
+		startDeferredRebuild();
+		return removed;
+	}
+
 	/**
 	 * Remove all items, resulting in an empty tree
 	 */
 	public void clear() {
+		if (pendingRoot != null) {
+			pendingRoot.cancel(false);
+		}
+		pendingRoot = null;
+		pendingTarget = null;
+		wantedTarget = null;
+		replayLog = null;
 		root = null;
-		maxItems = nItems = 0;
+		maxItems = nItems = nDead = 0;
+	}
+
+	/**
+	 * Start a batch of insertions and deletions. Until endBatch, updates do not
+	 * check the delete threshold, and insertions only rebalance if the tree grows
+	 * to BATCH_SLACK times its height bound, so a subtree that a series of updates
+	 * unbalances is rebuilt once, not once per update.
+	 */
+	public void beginBatch() {
+		inBatch = true;
+	}
+
+	/**
+	 * End a batch of updates, and restore the balance of the tree in one pass. If
+	 * the deletions of the batch passed the delete threshold, the whole tree is
+	 * rebuilt (or compacted); otherwise, each subtree the batch left too tall is
+	 * rebuilt.
+	 */
+	public void endBatch() {
+		inBatch = false;
+		if (root == null) {
+			maxItems = nItems = nDead = 0;
+		} else if (policy.needsRebuild(nItems, maxItems)) {
+			if (lazyDelete) {
+				if (!deferRebuild(root)) {
+					compact();
+				}
+			} else {
+				root = rebuild(root);
+				maxItems = nItems;
+			}
+		} else if (getHeight(root) > policy.maxHeight(maxItems)) {
+			root = restoreBalance(root);
+		}
+		startDeferredRebuild();
+	}
+
+	/**
+	 * Finish any background rebuild, and remove the dead points of a lazily
+	 * deleting tree, by rebuilding it from its live points.
+	 */
+	public void compact() {
+		swapRebuilt(true);
+		if (nDead > 0) {
+			root = buildTree(entryList());
+			nDead = 0;
+			maxItems = nItems;
+		}
 	}
 
 	public boolean isEmpty () {
-		if (root == null) return true;
+		if (nItems == 0) return true;
 		return false;
 	}
+
+	/**
+	 * The work left in the background rebuild under way: the points of its
+	 * replacement tree, plus the updates to replay on it.
+	 *
+	 * @return The rebuild debt (0 if no rebuild is under way)
+	 */
+	public int rebuildDebt() {
+		return pendingRoot == null ? 0 : pendingSize + replayLog.size();
+	}
+
+	/**
+	 * Would compact do any work: are there dead points, or a background rebuild
+	 * to finish?
+	 */
+	public boolean needsCompaction() {
+		return nDead > 0 || pendingRoot != null;
+	}
+
+	/**
+	 * The number of background rebuilds completed.
+	 */
+	public int getAsyncRebuilds() {
+		return asyncRebuilds;
+	}
 	/**
 	 * Return a list of entries
 	 *
@@ -541,15 +1176,136 @@ public class SGTree<P extends NamedPoint2D> {
 	 * @param output the output XML document
 	 */
 	public void print(Element element) {
+		print(element, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Print the top levels of the tree. Internal nodes at the given depth are
+	 * replaced by a "truncated" element carrying the size and height of their
+	 * subtree.
+	 *
+	 * @param element  the output XML element
+	 * @param maxDepth the number of levels of internal nodes to print
+	 */
+	public void print(Element element, int maxDepth) {
+		Document resultsDoc = element.getOwnerDocument(); // document receiving the output
+		Element out = resultsDoc.createElement("KdTree");
+		element.appendChild(out);
+		if (root != null)
+			root.print(out, maxDepth);
+	}
+
+	/**
+	 * Print a summary of the tree's shape instead of its contents: the size and
+	 * height, and for each level the number of internal and external nodes and the
+	 * worst balance ratio (larger child size over node size) among its internal
+	 * nodes. Only the levels above maxDepth are summarized.
+	 *
+	 * @param element  the output XML element
+	 * @param maxDepth the number of levels to summarize
+	 */
+	public void printSummary(Element element, int maxDepth) {
+		Document resultsDoc = element.getOwnerDocument(); // document receiving the output
 		Element out = resultsDoc.createElement("KdTree");
 		element.appendChild(out);
+		Element summary = resultsDoc.createElement("summary");
+		out.appendChild(summary);
+		summary.setAttribute("size", Integer.toString(nItems));
+		summary.setAttribute("height", Integer.toString(root == null ? 0 : getHeight(root)));
+		if (lazyDelete)
+			summary.setAttribute("deleted", Integer.toString(nDead));
+		if (asyncRebuild > 0)
+			summary.setAttribute("rebuildDebt", Integer.toString(rebuildDebt()));
+		ArrayList<Node> level = new ArrayList<Node>(); // nodes of the current level
 		if (root != null)
-			root.print(out);
+			level.add(root);
+		for (int depth = 0; depth < maxDepth && !level.isEmpty(); depth++) {
+			ArrayList<Node> next = new ArrayList<Node>();
+			int nInternal = 0;
+			float maxBalance = 0;
+			for (Node p : level) {
+				if (!p.isExternal) {
+					InternalNode q = (InternalNode) p;
+					nInternal++;
+					maxBalance = Math.max(maxBalance, (float) Math.max(getSize(q.left), getSize(q.right)) / q.size);
+					next.add(q.left);
+					next.add(q.right);
+				}
+			}
+			Element lev = resultsDoc.createElement("level");
+			lev.setAttribute("depth", Integer.toString(depth));
+			lev.setAttribute("internal", Integer.toString(nInternal));
+			lev.setAttribute("external", Integer.toString(level.size() - nInternal));
+			lev.setAttribute("maxBalance", String.format(Locale.US, "%.3f", maxBalance));
+			summary.appendChild(lev);
+			level = next;
+		}
 	}
 
 	public P nearNS(P queryPoint) throws Exception {
-		P res = root.nearestNeighborSearch(queryPoint, null); 
-		return res;
+		return nearNS(queryPoint, 0);
+	}
+
+	/**
+	 * Find an approximate nearest neighbor: a point whose distance from the query
+	 * point is at most (1 + epsilon) times that of the nearest point. Subtrees that
+	 * cannot improve on the best point by more than this factor are skipped. With
+	 * epsilon 0, the result is the exact nearest neighbor.
+	 *
+	 * @param queryPoint The query point
+	 * @param epsilon    The allowed relative error (at least 0)
+	 * @return The point found, or null if the tree is empty
+	 */
+	public P nearNS(P queryPoint, float epsilon) throws Exception {
+		return nearNS(queryPoint, epsilon, SymbolTable.ANY_COLOR);
+	}
+
+	/**
+	 * Find an approximate nearest neighbor among the points of one color. Subtrees
+	 * whose color mask lacks the color are skipped.
+	 *
+	 * @param queryPoint The query point
+	 * @param epsilon    The allowed relative error (at least 0)
+	 * @param color      The color code (or ANY_COLOR)
+	 * @return The point found, or null if there is no point of the color
+	 */
+	public P nearNS(P queryPoint, float epsilon, int color) throws Exception {
+		swapRebuilt(false);
+		if (root == null) {
+			return null;
+		}
+		return root.nearestNeighborSearch(queryPoint, null, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY,
+				Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, 1 + epsilon, color);
+	}
+
+	/**
+	 * Find all points whose circle of influence (given by their radius) contains a
+	 * query point. Subtrees whose largest radius cannot reach the query point are
+	 * pruned.
+	 *
+	 * @param queryPoint The query point
+	 * @return The points covering the query point, in tree order
+	 */
+	public List<P> covering(P queryPoint) {
+		return covering(queryPoint, SymbolTable.ANY_COLOR);
+	}
+
+	/**
+	 * Find the points of one color whose circle of influence contains a query
+	 * point.
+	 *
+	 * @param queryPoint The query point
+	 * @param color      The color code (or ANY_COLOR)
+	 * @return The points covering the query point, in tree order
+	 */
+	public List<P> covering(P queryPoint, int color) {
+		swapRebuilt(false);
+		ArrayList<P> list = new ArrayList<P>();
+		if (root != null) {
+			root.covering(queryPoint, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY,
+					Float.POSITIVE_INFINITY, color, list);
+		}
+		return list;
 	}
 
 }
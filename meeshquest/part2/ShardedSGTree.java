@@ -0,0 +1,428 @@
+package cmsc420.meeshquest.part2;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A spatial index that splits the map into a fixed grid of tiles (shards), each
+ * holding its own SG kd-tree. Every shard is guarded by its own lock, so
+ * inserts and deletes in different tiles can proceed in parallel, and a
+ * scapegoat rebuild never extends beyond one shard.
+ *
+ * Nearest-neighbor queries search the tile containing the query point first,
+ * and then the other tiles in order of their distance from the query point,
+ * stopping as soon as no remaining tile can hold a closer point.
+ *
+ * With a 1-by-1 grid, this behaves exactly like a single SGTree.
+ */
+public class ShardedSGTree<P extends NamedPoint2D> implements SpatialIndex<P> {
+
+	/**
+	 * A tile of the grid and the tree holding its points. The shard object is
+	 * also the lock for its tree.
+	 */
+	private class Shard {
+		final int col; // column of the tile
+		final int row; // row of the tile
+		final float xLo, yLo, xHi, yHi; // extent of the tile (unbounded beyond the grid's edges)
+		final SGTree<P> tree = new SGTree<P>(policy, lazyDelete, asyncRebuild); // points in the tile
+
+		Shard(int col, int row) {
+			this.col = col;
+			this.row = row;
+			// Tiles on the edge of the grid also hold the points beyond that edge
+			xLo = (col == 0) ? Float.NEGATIVE_INFINITY : col * tileWidth;
+			yLo = (row == 0) ? Float.NEGATIVE_INFINITY : row * tileHeight;
+			xHi = (col == cols - 1) ? Float.POSITIVE_INFINITY : (col + 1) * tileWidth;
+			yHi = (row == rows - 1) ? Float.POSITIVE_INFINITY : (row + 1) * tileHeight;
+		}
+
+		/**
+		 * Distance from a point to the nearest point of the tile's extent.
+		 */
+		float minDist(P pt) {
+			float dx = Math.max(0, Math.max(xLo - pt.getX(), pt.getX() - xHi));
+			float dy = Math.max(0, Math.max(yLo - pt.getY(), pt.getY() - yHi));
+			return (float) Math.sqrt(dx * dx + dy * dy);
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Private member data
+	// -----------------------------------------------------------------
+
+	private final int cols; // number of tile columns
+	private final int rows; // number of tile rows
+	private final float tileWidth; // width of a tile
+	private final float tileHeight; // height of a tile
+	private final ArrayList<Shard> shards; // shards in row-major order
+	private final BalancePolicy policy; // balance policy shared by the shards
+	private final boolean lazyDelete; // do the shards delete lazily?
+	private final int asyncRebuild; // smallest rebuild done in the background (0 = none)
+
+	/**
+	 * Returns the shard whose tile contains a point. Points on the map boundary
+	 * (or outside it) go to the nearest tile.
+	 */
+	private Shard shardOf(P pt) {
+		int col = Math.min(cols - 1, Math.max(0, (int) (pt.getX() / tileWidth)));
+		int row = Math.min(rows - 1, Math.max(0, (int) (pt.getY() / tileHeight)));
+		return shards.get(row * cols + col);
+	}
+
+	// -----------------------------------------------------------------
+	// Public members
+	// -----------------------------------------------------------------
+
+	/**
+	 * Creates an empty index covering a map with a grid of gridSize by gridSize
+	 * tiles.
+	 *
+	 * @param mapWidth   Width of the map (x-extent)
+	 * @param mapHeight  Height of the map (y-extent)
+	 * @param gridSize   Number of tiles along each side
+	 * @param policy     Balance policy of the shards' trees
+	 * @param lazyDelete Whether the shards' trees delete lazily
+	 * @param asyncRebuild Smallest rebuild of a shard's tree done in the
+	 *                   background (0 for none)
+	 */
+	public ShardedSGTree(float mapWidth, float mapHeight, int gridSize, BalancePolicy policy, boolean lazyDelete,
+			int asyncRebuild) {
+		this.policy = policy;
+		this.lazyDelete = lazyDelete;
+		this.asyncRebuild = asyncRebuild;
+		cols = rows = Math.max(1, gridSize);
+		tileWidth = Math.max(mapWidth, 1) / cols;
+		tileHeight = Math.max(mapHeight, 1) / rows;
+		shards = new ArrayList<Shard>(rows * cols);
+		for (int row = 0; row < rows; row++) {
+			for (int col = 0; col < cols; col++) {
+				shards.add(new Shard(col, row));
+			}
+		}
+	}
+
+	/**
+	 * Returns the lock of the shard holding a point. Holding it keeps out all
+	 * other updates and queries of the shard, so a caller can look a point up and
+	 * then insert or delete it without interference.
+	 *
+	 * @param pt The point
+	 * @return The lock
+	 */
+	public Object lockFor(P pt) {
+		return shardOf(pt);
+	}
+
+	/**
+	 * Size of the index.
+	 *
+	 * @return The number of items in all shards
+	 */
+	public int size() {
+		int n = 0;
+		for (Shard s : shards) {
+			synchronized (s) {
+				n += s.tree.size();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Is the index empty?
+	 *
+	 * @return True if no shard holds a point
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Find a point in the index. It suffices that the point has the coordinates of
+	 * the one sought.
+	 *
+	 * @param pt The item being sought
+	 * @return A reference to the element where found or null if not found
+	 */
+	public P find(P pt) {
+		Shard s = shardOf(pt);
+		synchronized (s) {
+			return s.tree.find(pt);
+		}
+	}
+
+	/**
+	 * Insert a point into the shard of its tile.
+	 *
+	 * @param pt The point to be inserted
+	 */
+	public void insert(P pt) throws Exception {
+		Shard s = shardOf(pt);
+		synchronized (s) {
+			s.tree.insert(pt);
+		}
+	}
+
+	/**
+	 * Delete a point from the shard of its tile.
+	 *
+	 * @param pt The point to be deleted
+	 */
+	public void delete(P pt) throws Exception {
+		Shard s = shardOf(pt);
+		synchronized (s) {
+			s.tree.delete(pt);
+		}
+	}
+
+	/**
+	 * Delete all points that lie in a region, from each shard whose tile extent
+	 * meets the region.
+	 *
+	 * @param region The region
+	 * @return The deleted points
+	 */
+	public List<P> deleteInRange(Region region) {
+		ArrayList<P> removed = new ArrayList<P>();
+		for (Shard s : shards) {
+			if (region.intersects(s.xLo, s.yLo, s.xHi, s.yHi)) {
+				synchronized (s) {
+					removed.addAll(s.tree.deleteInRange(region));
+				}
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Remove all items, resulting in an empty index
+	 */
+	public void clear() {
+		for (Shard s : shards) {
+			synchronized (s) {
+				s.tree.clear();
+			}
+		}
+	}
+
+	/**
+	 * Purge the dead points of each shard.
+	 */
+	public void compact() {
+		for (Shard s : shards) {
+			synchronized (s) {
+				s.tree.compact();
+			}
+		}
+	}
+
+	/**
+	 * Does any shard have dead points or a pending rebuild?
+	 */
+	public boolean needsCompaction() {
+		for (Shard s : shards) {
+			synchronized (s) {
+				if (s.tree.needsCompaction()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Start a batch of updates in each shard.
+	 */
+	public void beginBatch() {
+		for (Shard s : shards) {
+			synchronized (s) {
+				s.tree.beginBatch();
+			}
+		}
+	}
+
+	/**
+	 * End the batch of updates in each shard, rebalancing the shards it touched.
+	 */
+	public void endBatch() {
+		for (Shard s : shards) {
+			synchronized (s) {
+				s.tree.endBatch();
+			}
+		}
+	}
+
+	/**
+	 * The total rebuild debt of the shards.
+	 */
+	public int rebuildDebt() {
+		int debt = 0;
+		for (Shard s : shards) {
+			synchronized (s) {
+				debt += s.tree.rebuildDebt();
+			}
+		}
+		return debt;
+	}
+
+	/**
+	 * Return a list of entries, shard by shard.
+	 *
+	 * @return the list of entries for all elements in the index
+	 */
+	public List<P> entryList() {
+		ArrayList<P> list = new ArrayList<P>();
+		for (Shard s : shards) {
+			synchronized (s) {
+				list.addAll(s.tree.entryList());
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Find the nearest point to a query point. Shards are searched in order of the
+	 * distance from the query point to their tile, until the next tile is no closer
+	 * than the best point found so far.
+	 *
+	 * @param queryPoint The query point
+	 * @return The nearest point, or null if the index is empty
+	 */
+	public P nearNS(P queryPoint) throws Exception {
+		return nearNS(queryPoint, 0);
+	}
+
+	/**
+	 * Find an approximate nearest neighbor, within (1 + epsilon) of the nearest
+	 * distance. Each shard is searched approximately, and the search stops at the
+	 * first tile that cannot improve on the best point by more than this factor.
+	 *
+	 * @param queryPoint The query point
+	 * @param epsilon    The allowed relative error (at least 0)
+	 * @return The point found, or null if the index is empty
+	 */
+	public P nearNS(final P queryPoint, float epsilon) throws Exception {
+		return nearNS(queryPoint, epsilon, SymbolTable.ANY_COLOR);
+	}
+
+	/**
+	 * Find an approximate nearest neighbor among the points of one color. Each
+	 * shard's tree skips its subtrees without the color.
+	 *
+	 * @param queryPoint The query point
+	 * @param epsilon    The allowed relative error (at least 0)
+	 * @param color      The color code (or ANY_COLOR)
+	 * @return The point found, or null if there is no point of the color
+	 */
+	public P nearNS(final P queryPoint, float epsilon, int color) throws Exception {
+		ArrayList<Shard> order = new ArrayList<Shard>(shards);
+		order.sort(Comparator.comparingDouble((Shard s) -> s.minDist(queryPoint)));
+		P best = null;
+		float bestDist = Float.MAX_VALUE;
+		for (Shard s : order) {
+			if (best != null && s.minDist(queryPoint) * (1 + epsilon) >= bestDist) {
+				break; // no closer point remains
+			}
+			synchronized (s) {
+				P cand = s.tree.nearNS(queryPoint, epsilon, color);
+				if (cand == null) {
+					continue;
+				}
+				float dist = queryPoint.dist(cand.getPoint2D());
+				if (dist < bestDist) {
+					best = cand;
+					bestDist = dist;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Find all points whose circle of influence contains a query point. A circle
+	 * may reach across tiles, so every non-empty shard is searched.
+	 *
+	 * @param queryPoint The query point
+	 * @return The points covering the query point
+	 */
+	public List<P> covering(P queryPoint) {
+		return covering(queryPoint, SymbolTable.ANY_COLOR);
+	}
+
+	/**
+	 * Find the points of one color whose circle of influence contains a query
+	 * point.
+	 *
+	 * @param queryPoint The query point
+	 * @param color      The color code (or ANY_COLOR)
+	 * @return The points covering the query point
+	 */
+	public List<P> covering(P queryPoint, int color) {
+		ArrayList<P> list = new ArrayList<P>();
+		for (Shard s : shards) {
+			synchronized (s) {
+				list.addAll(s.tree.covering(queryPoint, color));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Print the tree, down to the given depth. With a single shard, the output is
+	 * that of its tree. Otherwise each non-empty shard is printed inside a "shard"
+	 * element giving the column and row of its tile.
+	 *
+	 * @param element  the output XML element
+	 * @param maxDepth the number of levels of internal nodes to print
+	 */
+	public void print(Element element, int maxDepth) {
+		for (Shard s : shards) {
+			synchronized (s) {
+				if (shards.size() == 1) {
+					s.tree.print(element, maxDepth);
+				} else if (!s.tree.isEmpty()) {
+					s.tree.print(shardElement(element, s), maxDepth);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Print a summary of each shard's shape, as in SGTree.printSummary.
+	 *
+	 * @param element  the output XML element
+	 * @param maxDepth the number of levels to summarize
+	 */
+	public void printSummary(Element element, int maxDepth) {
+		for (Shard s : shards) {
+			synchronized (s) {
+				if (shards.size() == 1) {
+					s.tree.printSummary(element, maxDepth);
+				} else if (!s.tree.isEmpty()) {
+					s.tree.printSummary(shardElement(element, s), maxDepth);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create the element into which a shard is printed.
+	 *
+	 * @param element The output XML element
+	 * @param s       The shard
+	 * @return The new element, a child of element
+	 */
+	private Element shardElement(Element element, Shard s) {
+		Document resultsDoc = element.getOwnerDocument(); // document receiving the output
+		Element out = resultsDoc.createElement("shard");
+		out.setAttribute("col", Integer.toString(s.col));
+		out.setAttribute("row", Integer.toString(s.row));
+		element.appendChild(out);
+		return out;
+	}
+}
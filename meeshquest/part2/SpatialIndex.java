@@ -0,0 +1,33 @@
+package cmsc420.meeshquest.part2;
+
+import java.util.List;
+
+import org.w3c.dom.Element;
+
+/**
+ * A spatial index of points, keyed by their coordinates. This abstracts the
+ * operations that the command handler needs from the coordinate dictionary, so
+ * that different structures (kd-tree, quadtree, ...) can be swapped in.
+ */
+public interface SpatialIndex<P extends NamedPoint2D> {
+	public int size(); // number of points
+	public boolean isEmpty(); // are there no points?
+	public P find(P pt); // find the point with pt's coordinates (or null)
+	public void insert(P pt) throws Exception; // insert a point
+	public void delete(P pt) throws Exception; // delete the point with pt's coordinates
+	public List<P> deleteInRange(Region region); // delete the points in region, and return them
+	public void clear(); // remove all points
+	public void compact(); // purge lazily deleted points, if any, and finish pending rebuilds
+	public int rebuildDebt(); // work left in rebuilds under way (0 if none)
+	public boolean needsCompaction(); // are there lazily deleted points or a pending rebuild?
+	public void beginBatch(); // defer rebalancing until endBatch
+	public void endBatch(); // rebalance once after a batch of updates
+	public List<P> entryList(); // list of all points
+	public P nearNS(P queryPoint) throws Exception; // nearest point to queryPoint (or null)
+	public P nearNS(P queryPoint, float epsilon) throws Exception; // point within (1 + epsilon) of the nearest
+	public P nearNS(P queryPoint, float epsilon, int color) throws Exception; // same, among points of a color code (or ANY_COLOR)
+	public List<P> covering(P queryPoint); // points whose radius reaches queryPoint
+	public List<P> covering(P queryPoint, int color); // same, among points of a color code (or ANY_COLOR)
+	public void print(Element element, int maxDepth); // print the structure, down to maxDepth
+	public void printSummary(Element element, int maxDepth); // print per-level statistics
+}
@@ -0,0 +1,107 @@
+package cmsc420.meeshquest.part2;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Symbol table for the strings that cities share. Maps typically use only a
+ * handful of colors, so each distinct color is stored once and cities refer to
+ * it by a small integer code. City names are interned, so that two references
+ * to the same name are the same String object and can be compared by
+ * reference before falling back on a character comparison.
+ *
+ * The table is shared by all cities and is safe to use from multiple threads.
+ * Only encoding a new color takes a lock. Codes are decoded from an array that
+ * is copied whenever a color is added, so rendering cities never waits.
+ */
+public final class SymbolTable {
+
+	// Color code of queries that accept every color
+	public static final int ANY_COLOR = -1;
+
+	// Color code of "black", the color of cities made only for look-ups
+	public static final int BLACK = 0;
+
+	// color -> code (also the lock for adding colors)
+	private static final ConcurrentHashMap<String, Integer> colorCodes = new ConcurrentHashMap<String, Integer>();
+	private static volatile String[] colorNames = { "black" }; // code -> color (copied on write)
+
+	static {
+		colorCodes.put("black", BLACK);
+	}
+
+	/**
+	 * Private constructor. All class methods are static.
+	 */
+	private SymbolTable() {
+	}
+
+	/**
+	 * Encode a color. Colors that have not been seen before are assigned the next
+	 * free code.
+	 *
+	 * @param color The color name
+	 * @return The code of the color
+	 */
+	public static int encodeColor(String color) {
+		Integer code = colorCodes.get(color);
+		if (code != null) {
+			return code;
+		}
+		synchronized (colorCodes) {
+			code = colorCodes.get(color);
+			if (code == null) { // not added meanwhile
+				String[] names = Arrays.copyOf(colorNames, colorNames.length + 1);
+				code = colorNames.length;
+				names[code] = color;
+				colorNames = names; // publish the name before the code
+				colorCodes.put(color, code);
+			}
+			return code;
+		}
+	}
+
+	/**
+	 * Look up the code of a color, without encoding new colors.
+	 *
+	 * @param color The color name
+	 * @return The code of the color, or -1 if no city has had this color
+	 */
+	public static int findColor(String color) {
+		Integer code = colorCodes.get(color);
+		return code == null ? -1 : code;
+	}
+
+	/**
+	 * The bit of a color in a color mask, a long with one bit per color. Colors
+	 * with codes from 63 up share the last bit, so a mask may report a color that
+	 * is not there, but never misses one.
+	 *
+	 * @param code A color code, or ANY_COLOR
+	 * @return The color's bit (all bits for ANY_COLOR)
+	 */
+	public static long colorBit(int code) {
+		return code < 0 ? -1L : 1L << Math.min(code, 63);
+	}
+
+	/**
+	 * Decode a color.
+	 *
+	 * @param code A code returned by encodeColor
+	 * @return The color name
+	 */
+	public static String decodeColor(int code) {
+		return colorNames[code];
+	}
+
+	/**
+	 * Intern a city name. Interned names are kept by the JVM string pool, so names
+	 * of deleted cities do not accumulate here.
+	 *
+	 * @param name The city name
+	 * @return The canonical instance of the name
+	 */
+	public static String internName(String name) {
+		return name.intern();
+	}
+}